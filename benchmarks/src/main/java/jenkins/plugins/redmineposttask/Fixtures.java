@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.TestResult;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Synthetic inputs shared by the benchmarks.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * Parses a generated JUnit report with the given number of failures
+     * spread over a few hundred test classes, the way the test report of a
+     * build would be loaded.
+     */
+    static List<CaseResult> failedTests(int failures) throws IOException {
+        File report = File.createTempFile("TEST-", ".xml");
+        report.deleteOnExit();
+        Writer out = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<testsuite name=\"bench\" tests=\"" + failures + "\" failures=\"" + failures + "\">\n");
+            for (int i = 0; i < failures; i++) {
+                // skewed so that a handful of classes dominate, like a real breakage
+                int suite = i % 10 < 7 ? i % 5 : i % 300;
+                out.write("  <testcase classname=\"org.example.module" + suite % 7 + ".Suite" + suite
+                        + "Test\" name=\"test" + i + "\" time=\"0.01\">\n");
+                out.write("    <failure message=\"expected:&lt;" + i + "&gt; but was:&lt;" + (i + 1)
+                        + "&gt;\">" + stackTrace(i) + "</failure>\n");
+                out.write("  </testcase>\n");
+            }
+            out.write("</testsuite>\n");
+        } finally {
+            out.close();
+        }
+        TestResult result = new TestResult();
+        result.parse(report);
+        result.tally();
+        return result.getFailedTests();
+    }
+
+    /**
+     * Writes a console log of the given number of lines.
+     */
+    static File consoleLog(int lines) throws IOException {
+        File log = File.createTempFile("log", ".txt");
+        log.deleteOnExit();
+        Writer out = new OutputStreamWriter(new FileOutputStream(log), "UTF-8");
+        try {
+            for (int i = 0; i < lines; i++) {
+                out.write("[INFO] " + i + " Compiling 42 source files to /var/lib/jenkins/workspace/job/target/classes\n");
+            }
+        } finally {
+            out.close();
+        }
+        return log;
+    }
+
+    /**
+     * Returns text of roughly the given number of characters.
+     */
+    static String text(int chars) {
+        StringBuilder text = new StringBuilder(chars + 80);
+        for (int i = 0; text.length() < chars; i++) {
+            text.append("|org.example.Suite").append(i).append("Test.test|expected 1 but was 2|\n");
+        }
+        return text.toString();
+    }
+
+    private static String stackTrace(int i) {
+        StringBuilder trace = new StringBuilder("java.lang.AssertionError: expected " + i);
+        for (int frame = 0; frame < 20; frame++) {
+            trace.append("\n\tat org.example.Frame").append(frame).append(".call(Frame.java:").append(frame + 10).append(")");
+        }
+        return trace.toString();
+    }
+}
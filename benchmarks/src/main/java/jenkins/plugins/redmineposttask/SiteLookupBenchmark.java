@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.util.CopyOnWriteList;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookup of a configured site by name, as done for every post: through the
+ * {@link SiteIndex} used by {@link RedmineSite#get(String)}, against the
+ * former copy of the site list followed by a linear search.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SiteLookupBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int sites;
+
+    private final CopyOnWriteList<RedmineSite> list = new CopyOnWriteList<RedmineSite>();
+
+    private SiteIndex index;
+
+    private String lastName;
+
+    @Setup
+    public void setUp() throws MalformedURLException {
+        for (int i = 0; i < sites; i++) {
+            list.add(new RedmineSite("redmine" + i, new URL("http://redmine" + i + ".example.org/"),
+                    "key", "project", 0, 0));
+        }
+        index = new SiteIndex(list.getView());
+        lastName = "redmine" + (sites - 1);
+    }
+
+    @Benchmark
+    public RedmineSite lookupLast() {
+        return index.get(lastName);
+    }
+
+    @Benchmark
+    public RedmineSite lookupMissing() {
+        return index.get("unknown");
+    }
+
+    @Benchmark
+    public RedmineSite scanLast() {
+        return scan(lastName);
+    }
+
+    @Benchmark
+    public RedmineSite scanMissing() {
+        return scan("unknown");
+    }
+
+    private RedmineSite scan(String name) {
+        for (RedmineSite site : list.toArray(new RedmineSite[0])) {
+            if (site.name.equals(name)) {
+                return site;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stops calling a Redmine site that keeps failing.
+ *
+ * After {@link #FAILURE_THRESHOLD} consecutive failures the breaker opens
+ * and calls fail fast for {@link #OPEN_MILLIS}. Then it lets a single trial
+ * call through (half-open); its outcome closes or reopens the breaker.
+ *
+ * Breakers are kept by site name, so saving the configuration, which
+ * creates new {@link RedmineSite} objects, does not reset them.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final int FAILURE_THRESHOLD = 5;
+
+    private static final long OPEN_MILLIS = 30 * 1000;
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private final int failureThreshold;
+
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+
+    private int failures;
+
+    private long openedAt;
+
+    private boolean trialInFlight;
+
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Returns the breaker shared by every instance of the named site. A site
+     * without a name gets one of its own.
+     */
+    static CircuitBreaker get(String siteName) {
+        if (siteName == null) {
+            return new CircuitBreaker(FAILURE_THRESHOLD, OPEN_MILLIS);
+        }
+        CircuitBreaker breaker = BREAKERS.get(siteName);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(FAILURE_THRESHOLD, OPEN_MILLIS);
+            breaker = BREAKERS.putIfAbsent(siteName, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Drops the breakers of the sites that are no longer configured.
+     */
+    static void retainAll(Collection<String> siteNames) {
+        BREAKERS.keySet().retainAll(siteNames);
+    }
+
+    /**
+     * Returns true if a call may be made now. Every permitted call must be
+     * followed by {@link #onSuccess()}, {@link #onFailure()} or
+     * {@link #onIgnored()}, whatever it throws, or a half-open breaker
+     * rejects every call from then on.
+     */
+    synchronized boolean allow() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            trialInFlight = true;
+            return true;
+        default:
+            if (trialInFlight) {
+                return false;
+            }
+            trialInFlight = true;
+            return true;
+        }
+    }
+
+    synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        trialInFlight = false;
+    }
+
+    synchronized void onFailure() {
+        trialInFlight = false;
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Releases a permitted call that ended without telling anything about
+     * the site's health.
+     */
+    synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+        }
+    }
+
+    synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a save some time after the first of a burst of changes, on a
+ * background thread, so that callers making the changes never wait for the
+ * disk and a burst costs one write.
+ */
+final class DebouncedSave {
+
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("RedminePostTask.save"));
+
+    private final Runnable save;
+
+    private final long delay;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    DebouncedSave(Runnable save, long delayMillis) {
+        this.save = save;
+        this.delay = delayMillis;
+    }
+
+    /**
+     * Schedules a save unless one is scheduled already. Changes made before
+     * the save starts are included in it.
+     */
+    void request() {
+        if (scheduled.compareAndSet(false, true)) {
+            TIMER.schedule(new Runnable() {
+                public void run() {
+                    scheduled.set(false);
+                    save.run();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
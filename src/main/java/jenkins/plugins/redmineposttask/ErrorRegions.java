@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.console.ConsoleNote;
+import hudson.model.AbstractBuild;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the regions of a console log around lines containing error
+ * markers, such as a compiler error thousands of lines before the end.
+ *
+ * The log is scanned once, front to back, with a {@link MarkerMatcher}.
+ * The lines preceding the current one are kept in a fixed-size ring buffer
+ * so the context before a hit is at hand; the lines following it are taken
+ * as they come. Overlapping regions merge. The first regions are kept until
+ * the line or byte budget is used up, later hits are only counted. Memory
+ * does not depend on the size of the log; overlong lines are cut.
+ */
+final class ErrorRegions {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_LINE_CHARS = 4096;
+
+    static final String DEFAULT_MARKERS = "ERROR\nException\nBUILD FAILURE\nFATAL\nerror:\nError:";
+
+    private final MarkerMatcher matcher;
+
+    private final int contextLines;
+
+    private final int maxLines;
+
+    private final int maxBytes;
+
+    private final List<String> lines = new ArrayList<String>();
+
+    private long bytes;
+
+    private boolean full;
+
+    // the lines before the current one that have not been emitted, reused
+    private final StringBuilder[] ring;
+    private int ringStart;
+    private int ringCount;
+
+    private long lineNumber;
+
+    private long lastEmitted = -1;
+
+    private int after;
+
+    private int omittedHits;
+
+    private ErrorRegions(MarkerMatcher matcher, int contextLines, int maxLines, int maxBytes) {
+        this.matcher = matcher;
+        this.contextLines = contextLines;
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+        this.ring = new StringBuilder[Math.max(contextLines, 0)];
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new StringBuilder();
+        }
+    }
+
+    static List<String> read(AbstractBuild<?, ?> build, MarkerMatcher matcher, int contextLines,
+                             int maxLines, int maxBytes) throws IOException {
+        Reader reader = new InputStreamReader(build.getLogInputStream(), build.getCharset());
+        try {
+            return scan(reader, matcher, contextLines, maxLines, maxBytes);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns the regions, separated by "..." lines, or an empty list if no
+     * line matched.
+     */
+    static List<String> scan(Reader reader, MarkerMatcher matcher, int contextLines, int maxLines,
+                             int maxBytes) throws IOException {
+        ErrorRegions regions = new ErrorRegions(matcher, contextLines, maxLines, maxBytes);
+        char[] buffer = new char[BUFFER_SIZE];
+        StringBuilder line = new StringBuilder();
+        int state = 0;
+        boolean hit = false;
+        boolean pending = false;
+        int n;
+        while ((n = reader.read(buffer)) >= 0) {
+            for (int i = 0; i < n; i++) {
+                char c = buffer[i];
+                if (c == '\n') {
+                    regions.endLine(line, hit);
+                    line.setLength(0);
+                    state = 0;
+                    hit = false;
+                    pending = false;
+                    continue;
+                }
+                pending = true;
+                state = matcher.next(state, c);
+                hit |= matcher.isMatch(state);
+                if (line.length() < MAX_LINE_CHARS) {
+                    line.append(c);
+                }
+            }
+        }
+        if (pending) {
+            regions.endLine(line, hit);
+        }
+        return regions.finish();
+    }
+
+    private void endLine(StringBuilder raw, boolean hit) {
+        if (full) {
+            if (hit) {
+                omittedHits++;
+            }
+            return;
+        }
+        if (hit) {
+            long first = lineNumber - ringCount;
+            if (lastEmitted >= 0 && first > lastEmitted + 1) {
+                emit("...");
+            }
+            for (int i = 0; i < ringCount && !full; i++) {
+                emit(text(ring[(ringStart + i) % ring.length]));
+            }
+            ringCount = 0;
+            if (!emit(text(raw))) {
+                omittedHits++;
+            }
+            lastEmitted = lineNumber;
+            after = contextLines;
+        } else if (after > 0) {
+            emit(text(raw));
+            lastEmitted = lineNumber;
+            after--;
+        } else if (contextLines > 0) {
+            StringBuilder slot;
+            if (ringCount < ring.length) {
+                slot = ring[(ringStart + ringCount++) % ring.length];
+            } else {
+                slot = ring[ringStart];
+                ringStart = (ringStart + 1) % ring.length;
+            }
+            slot.setLength(0);
+            slot.append(raw);
+        }
+        lineNumber++;
+    }
+
+    private boolean emit(String text) {
+        if (full) {
+            return false;
+        }
+        if (lines.size() >= maxLines || bytes + text.length() + 1 > maxBytes) {
+            full = true;
+            return false;
+        }
+        lines.add(text);
+        bytes += text.length() + 1;
+        return true;
+    }
+
+    private List<String> finish() {
+        if (omittedHits > 0) {
+            lines.add("... " + omittedHits + " more matching lines");
+        }
+        return lines;
+    }
+
+    private static String text(StringBuilder line) {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            length--;
+        }
+        return ConsoleNote.removeNotes(line.substring(0, length));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.TestResultAction;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Identifies a failure so that recurring failures of a job can be told
+ * apart from new ones.
+ *
+ * The fingerprint is taken from the names of the failed tests when there
+ * are any, otherwise from the tail of the console log with everything that
+ * changes from build to build (numbers, hashes, timestamps) masked out.
+ */
+final class FailureFingerprint {
+
+    private static final int LOG_TAIL_LINES = 50;
+
+    private static final int LOG_TAIL_BYTES = 16 * 1024;
+
+    private static final Pattern HEX = Pattern.compile("\\b[0-9a-fA-F]{8,}\\b");
+
+    private static final Pattern NUMBER = Pattern.compile("\\d+");
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private FailureFingerprint() {
+    }
+
+    static String of(AbstractBuild<?, ?> build) throws IOException {
+        List<String> failedTests = new ArrayList<String>();
+        for (TestResultAction result : build.getActions(TestResultAction.class)) {
+            for (CaseResult fail : result.getFailedTests()) {
+                failedTests.add(fail.getFullName());
+            }
+        }
+        if (!failedTests.isEmpty()) {
+            Collections.sort(failedTests);
+            StringBuilder tests = new StringBuilder("tests:");
+            for (String name : failedTests) {
+                tests.append(name).append('\n');
+            }
+            return Util.getDigestOf(tests.toString());
+        }
+
+        StringBuilder log = new StringBuilder("log:");
+        for (String line : LogTail.read(build, LOG_TAIL_LINES, LOG_TAIL_BYTES)) {
+            log.append(normalize(line)).append('\n');
+        }
+        return Util.getDigestOf(log.toString());
+    }
+
+    /**
+     * Combines several fingerprints, regardless of their order.
+     */
+    static String of(List<String> fingerprints) {
+        List<String> sorted = new ArrayList<String>(fingerprints);
+        Collections.sort(sorted);
+        StringBuilder parts = new StringBuilder("parts:");
+        for (String fingerprint : sorted) {
+            parts.append(fingerprint).append('\n');
+        }
+        return Util.getDigestOf(parts.toString());
+    }
+
+    static String normalize(String line) {
+        String normalized = HEX.matcher(line).replaceAll("#");
+        normalized = NUMBER.matcher(normalized).replaceAll("#");
+        return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.taskadapter.redmineapi.AttachmentManager;
+import com.taskadapter.redmineapi.RedmineException;
+import com.taskadapter.redmineapi.bean.Attachment;
+import hudson.console.PlainTextConsoleOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads a console log to Redmine as a gzip-compressed attachment.
+ *
+ * The log is compressed on a separate thread and piped into the upload, so
+ * neither the log nor its compressed form is ever held in memory. The upload
+ * has no content length and goes out with chunked transfer encoding. Logs
+ * larger than the limit are cut to their last bytes; logs Jenkins already
+ * compressed are sent as they are, or not at all if they are too large.
+ */
+final class LogAttachment {
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private static final String CONTENT_TYPE = "application/gzip";
+
+    private static final ExecutorService COMPRESSORS =
+            Executors.newCachedThreadPool(new NamedThreadFactory("LogAttachment.gzip"));
+
+    private LogAttachment() {
+    }
+
+    /**
+     * Whether {@link #upload} will send the log: it exists and, if Jenkins
+     * compressed it, fits the limit.
+     */
+    static boolean canAttach(File log, long maxBytes) {
+        return log.isFile() && !(log.getName().endsWith(".gz") && log.length() > maxBytes);
+    }
+
+    /**
+     * Whether only the end of the log will be sent.
+     */
+    static boolean isCut(File log, long maxBytes) {
+        return !log.getName().endsWith(".gz") && log.length() > maxBytes;
+    }
+
+    /**
+     * Returns the uploaded attachment, ready to be added to an issue, or null
+     * if the log is gone or too large to send.
+     */
+    static Attachment upload(AttachmentManager manager, RedminePost post)
+            throws RedmineException, IOException {
+        File log = new File(post.logFile);
+        if (!log.isFile()) {
+            LOGGER.info("Console log of " + post + " no longer exists, not attaching it");
+            return null;
+        }
+        String fileName = "console-" + post.buildNumber + ".log.gz";
+        if (log.getName().endsWith(".gz")) {
+            if (log.length() > post.logMaxBytes) {
+                LOGGER.info("Compressed console log of " + post + " exceeds " + post.logMaxBytes
+                            + " bytes, not attaching it");
+                return null;
+            }
+            InputStream in = new FileInputStream(log);
+            try {
+                return manager.uploadAttachment(fileName, CONTENT_TYPE, in);
+            } finally {
+                in.close();
+            }
+        }
+
+        PipedInputStream pipe = new PipedInputStream(PIPE_SIZE);
+        final OutputStream sink = new PipedOutputStream(pipe);
+        final File file = log;
+        final long maxBytes = post.logMaxBytes;
+        final Future<Void> compressor = COMPRESSORS.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                try {
+                    compress(file, maxBytes, sink);
+                } finally {
+                    sink.close();
+                }
+                return null;
+            }
+        });
+        InputStream in = new FilterInputStream(pipe) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b < 0) {
+                    checkCompressor(compressor);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n < 0) {
+                    checkCompressor(compressor);
+                }
+                return n;
+            }
+        };
+        try {
+            return manager.uploadAttachment(fileName, CONTENT_TYPE, in);
+        } finally {
+            // unblocks the compressor if the upload gave up early
+            pipe.close();
+            compressor.cancel(true);
+        }
+    }
+
+    private static void compress(File log, long maxBytes, OutputStream sink) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(sink, 8192);
+        FileInputStream in = new FileInputStream(log);
+        try {
+            long skip = log.length() - maxBytes;
+            if (skip > 0) {
+                skipFully(in, skip);
+                gzip.write(("[... " + skip + " bytes of the log omitted ...]\n").getBytes("UTF-8"));
+            }
+            // console notes are markup for the Jenkins UI, not for a text file
+            OutputStream out = new PlainTextConsoleOutputStream(gzip);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            // flushes the last line and finishes the gzip stream
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Console log shrank while reading it");
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Turns a failed compression into a read error, so a truncated log is
+     * never uploaded as if it were complete.
+     */
+    private static void checkCompressor(Future<Void> compressor) throws IOException {
+        try {
+            compressor.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing the console log");
+        } catch (ExecutionException e) {
+            IOException ex = new IOException("Failed to compress the console log");
+            ex.initCause(e.getCause());
+            throw ex;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LogAttachment.class.getName());
+}
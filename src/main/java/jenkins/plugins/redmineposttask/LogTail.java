@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.console.ConsoleNote;
+import hudson.model.AbstractBuild;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Reads the last lines of a build's console log within a line and a byte
+ * budget.
+ *
+ * A plain log file is read backwards from its end in fixed-size blocks, so
+ * the cost does not depend on the size of the log. Compressed logs cannot be
+ * seeked and are streamed instead, keeping only the tail in memory. Either
+ * way the budget counts the lines and the newlines between them, only whole
+ * lines are returned, and a last line larger than the budget is cut to it.
+ */
+final class LogTail {
+
+    private static final int BLOCK_SIZE = 8192;
+
+    private LogTail() {
+    }
+
+    static List<String> read(AbstractBuild<?, ?> build, int maxLines, int maxBytes) throws IOException {
+        if (maxLines <= 0 || maxBytes <= 0) {
+            return Collections.emptyList();
+        }
+        File log = build.getLogFile();
+        if (log.isFile() && !log.getName().endsWith(".gz")) {
+            return readBackward(log, build.getCharset(), maxLines, maxBytes);
+        }
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(build.getLogInputStream(), build.getCharset()));
+        try {
+            return readForward(reader, maxLines, maxBytes);
+        } finally {
+            reader.close();
+        }
+    }
+
+    static List<String> readBackward(File file, Charset charset, int maxLines, int maxBytes)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long end = raf.length();
+            if (end > 0) {
+                // a trailing newline does not start another line
+                raf.seek(end - 1);
+                if (raf.read() == '\n') {
+                    end--;
+                }
+            }
+            long limit = Math.max(0, end - maxBytes);
+            long start = limit;
+            byte[] block = new byte[BLOCK_SIZE];
+            int newlines = 0;
+            long pos = end;
+            search:
+            while (pos > limit) {
+                int len = (int) Math.min(BLOCK_SIZE, pos - limit);
+                pos -= len;
+                raf.seek(pos);
+                raf.readFully(block, 0, len);
+                for (int i = len - 1; i >= 0; i--) {
+                    if (block[i] == '\n' && ++newlines == maxLines) {
+                        start = pos + i + 1;
+                        break search;
+                    }
+                }
+            }
+
+            byte[] tail = new byte[(int) (end - start)];
+            raf.seek(start);
+            raf.readFully(tail);
+            int from = 0;
+            if (start > 0 && start == limit) {
+                // the budget ends inside a line, which is left out unless it is the only one
+                raf.seek(start - 1);
+                if (raf.read() != '\n') {
+                    for (int i = 0; i < tail.length; i++) {
+                        if (tail[i] == '\n') {
+                            from = i + 1;
+                            break;
+                        }
+                    }
+                }
+            }
+            return split(new String(tail, from, tail.length - from, charset));
+        } finally {
+            raf.close();
+        }
+    }
+
+    static List<String> readForward(BufferedReader reader, int maxLines, int maxBytes) throws IOException {
+        LinkedList<String> lines = new LinkedList<String>();
+        long bytes = 0;
+        StringBuilder line = new StringBuilder();
+        boolean pending = false;
+        int c;
+        while (true) {
+            c = reader.read();
+            if (c == -1 || c == '\n') {
+                if (c == -1 && !pending) {
+                    break;
+                }
+                String s = line.length() > maxBytes
+                           ? line.substring(line.length() - maxBytes) : line.toString();
+                lines.addLast(s);
+                // the newline after the last line is not counted
+                bytes += s.length() + 1;
+                while (lines.size() > maxLines || (bytes - 1 > maxBytes && lines.size() > 1)) {
+                    bytes -= lines.removeFirst().length() + 1;
+                }
+                line.setLength(0);
+                pending = false;
+                if (c == -1) {
+                    break;
+                }
+            } else {
+                pending = true;
+                // only the end of an overlong line is kept
+                if (line.length() >= 2L * maxBytes) {
+                    line.delete(0, line.length() - maxBytes);
+                }
+                line.append((char) c);
+            }
+        }
+        List<String> result = new ArrayList<String>(lines.size());
+        for (String s : lines) {
+            result.add(ConsoleNote.removeNotes(stripCarriageReturn(s)));
+        }
+        return result;
+    }
+
+    private static List<String> split(String text) {
+        List<String> lines = new ArrayList<String>();
+        if (text.length() == 0) {
+            return lines;
+        }
+        int from = 0;
+        while (from <= text.length()) {
+            int to = text.indexOf('\n', from);
+            if (to < 0) {
+                to = text.length();
+            }
+            lines.add(ConsoleNote.removeNotes(stripCarriageReturn(text.substring(from, to))));
+            from = to + 1;
+        }
+        return lines;
+    }
+
+    private static String stripCarriageReturn(String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+}
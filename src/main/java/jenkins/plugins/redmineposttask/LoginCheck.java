@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.taskadapter.redmineapi.RedmineException;
+import com.taskadapter.redmineapi.RedmineManager;
+import com.taskadapter.redmineapi.RedmineManagerFactory;
+import com.taskadapter.redmineapi.TransportConfiguration;
+import hudson.Util;
+import hudson.util.FormValidation;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Checks the connection settings of a site from the configuration page.
+ *
+ * Results are cached for a short while by URL, API key and project, and
+ * concurrent checks of the same settings share a single request to
+ * Redmine. The request has connect and read timeouts, so a hung Redmine
+ * cannot hold on to the web server's threads.
+ */
+final class LoginCheck {
+
+    private static final String PROPERTY_PREFIX = LoginCheck.class.getName();
+
+    private static final long TTL = TimeUnit.SECONDS.toMillis(Integer.getInteger(PROPERTY_PREFIX + ".ttl", 60));
+
+    // failures are cached briefly, only to absorb bursts of identical checks
+    private static final long FAILURE_TTL = TimeUnit.SECONDS.toMillis(5);
+
+    private static final int CONNECT_TIMEOUT = Integer.getInteger(PROPERTY_PREFIX + ".connectTimeout", 5000);
+
+    private static final int READ_TIMEOUT = Integer.getInteger(PROPERTY_PREFIX + ".readTimeout", 10000);
+
+    private static final int MAX_ENTRIES = 100;
+
+    private static final ConcurrentMap<String, Entry> CACHE = new ConcurrentHashMap<String, Entry>();
+
+    private LoginCheck() {
+    }
+
+    static FormValidation check(final String url, final String apiAccessKey, final String projectId) {
+        // the key itself is not kept around
+        String key = url + "\n" + Util.getDigestOf(String.valueOf(apiAccessKey)) + "\n" + projectId;
+        return check(key, new Callable<FormValidation>() {
+            public FormValidation call() {
+                return connect(url, apiAccessKey, projectId);
+            }
+        });
+    }
+
+    /**
+     * Returns the result of the check cached under the key, running the
+     * check unless it is cached or running already.
+     */
+    static FormValidation check(String key, Callable<FormValidation> connect) {
+        Entry entry;
+        while (true) {
+            entry = CACHE.get(key);
+            if (entry != null && !entry.isExpired()) {
+                break;
+            }
+            Entry created = new Entry(connect);
+            boolean installed = entry == null ? CACHE.putIfAbsent(key, created) == null
+                                              : CACHE.replace(key, entry, created);
+            if (installed) {
+                evictExpired();
+                created.run();
+                entry = created;
+                break;
+            }
+        }
+        try {
+            // a running check is bounded by its own timeouts
+            return entry.get(CONNECT_TIMEOUT + 2L * READ_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return FormValidation.warning("Interrupted while checking the connection.");
+        } catch (ExecutionException e) {
+            return FormValidation.error(String.valueOf(e.getCause()));
+        } catch (TimeoutException e) {
+            return FormValidation.warning("Redmine did not answer in time.");
+        }
+    }
+
+    private static FormValidation connect(String url, String apiAccessKey, String projectId) {
+        TransportConfiguration config = RedmineManagerFactory.createShortTermConfig(
+                RedmineManagerFactory.createDefaultConnectionManager());
+        HttpParams params = config.client.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+        RedmineManager redmineMgr = RedmineManagerFactory.createWithApiKey(url, apiAccessKey, config);
+        try {
+            redmineMgr.getProjectManager().getProjectByKey(projectId);
+            return FormValidation.ok("OK.");
+        } catch (RedmineException ex) {
+            LOGGER.log(Level.FINE, "Connection check of " + url + " failed", ex);
+            return FormValidation.error(ex.toString());
+        } finally {
+            redmineMgr.shutdown();
+        }
+    }
+
+    private static void evictExpired() {
+        if (CACHE.size() <= MAX_ENTRIES) {
+            return;
+        }
+        for (Iterator<Entry> it = CACHE.values().iterator(); it.hasNext();) {
+            if (it.next().isExpired()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Entry extends FutureTask<FormValidation> {
+
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        Entry(Callable<FormValidation> check) {
+            super(check);
+        }
+
+        @Override
+        protected void done() {
+            boolean ok = false;
+            try {
+                ok = !isCancelled() && get().kind == FormValidation.Kind.OK;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // not ok
+            }
+            expiresAt = System.currentTimeMillis() + (ok ? TTL : FAILURE_TTL);
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LoginCheck.class.getName());
+}
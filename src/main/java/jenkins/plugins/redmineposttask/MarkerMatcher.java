@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds any of a set of markers in a stream of characters in one pass
+ * (Aho-Corasick).
+ *
+ * The keyword trie and its failure links are compiled into a deterministic
+ * automaton, so each character costs one table lookup no matter how many
+ * markers there are. Characters are first mapped to the few classes that
+ * occur in the markers, which keeps the table small.
+ */
+final class MarkerMatcher {
+
+    /**
+     * Class of every ASCII character, 0 for characters in no marker.
+     */
+    private final int[] asciiClasses = new int[128];
+
+    /**
+     * Class of the other characters occurring in markers, null if there are none.
+     */
+    private final Map<Character, Integer> otherClasses;
+
+    private final int classCount;
+
+    /**
+     * Next state for each state and character class.
+     */
+    private final int[] transitions;
+
+    private final boolean[] accepting;
+
+    private MarkerMatcher(List<String> markers) {
+        Map<Character, Integer> others = new HashMap<Character, Integer>();
+        int classes = 1;
+        for (String marker : markers) {
+            for (int i = 0; i < marker.length(); i++) {
+                char c = marker.charAt(i);
+                if (c < 128) {
+                    if (asciiClasses[c] == 0) {
+                        asciiClasses[c] = classes++;
+                    }
+                } else if (!others.containsKey(c)) {
+                    others.put(c, classes++);
+                }
+            }
+        }
+        otherClasses = others.isEmpty() ? null : others;
+        classCount = classes;
+
+        // the trie, with -1 for missing edges
+        List<int[]> trie = new ArrayList<int[]>();
+        List<Boolean> ends = new ArrayList<Boolean>();
+        trie.add(newRow());
+        ends.add(false);
+        for (String marker : markers) {
+            int state = 0;
+            for (int i = 0; i < marker.length(); i++) {
+                int cls = classOf(marker.charAt(i));
+                if (trie.get(state)[cls] < 0) {
+                    trie.get(state)[cls] = trie.size();
+                    trie.add(newRow());
+                    ends.add(false);
+                }
+                state = trie.get(state)[cls];
+            }
+            ends.set(state, true);
+        }
+
+        // breadth first, resolving missing edges through the failure links
+        int states = trie.size();
+        transitions = new int[states * classCount];
+        accepting = new boolean[states];
+        int[] failure = new int[states];
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        for (int cls = 0; cls < classCount; cls++) {
+            int next = trie.get(0)[cls];
+            if (next > 0) {
+                failure[next] = 0;
+                queue.add(next);
+                transitions[cls] = next;
+            }
+        }
+        accepting[0] = ends.get(0);
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            accepting[state] = ends.get(state) || accepting[failure[state]];
+            for (int cls = 0; cls < classCount; cls++) {
+                int next = trie.get(state)[cls];
+                if (next > 0) {
+                    failure[next] = transitions[failure[state] * classCount + cls];
+                    queue.add(next);
+                    transitions[state * classCount + cls] = next;
+                } else {
+                    transitions[state * classCount + cls] = transitions[failure[state] * classCount + cls];
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles the non-empty lines of the given text, one marker per line.
+     */
+    static MarkerMatcher compile(String markers) {
+        List<String> list = new ArrayList<String>();
+        for (String line : markers.split("\r?\n")) {
+            if (line.trim().length() > 0) {
+                list.add(line.trim());
+            }
+        }
+        return new MarkerMatcher(list);
+    }
+
+    /**
+     * State after reading the given character in the given state. The
+     * initial state is 0.
+     */
+    int next(int state, char c) {
+        return transitions[state * classCount + classOf(c)];
+    }
+
+    /**
+     * Whether a marker ends at the character that led to this state.
+     */
+    boolean isMatch(int state) {
+        return accepting[state];
+    }
+
+    private int classOf(char c) {
+        if (c < 128) {
+            return asciiClasses[c];
+        }
+        if (otherClasses == null) {
+            return 0;
+        }
+        Integer cls = otherClasses.get(c);
+        return cls != null ? cls : 0;
+    }
+
+    private int[] newRow() {
+        int[] row = new int[classCount];
+        Arrays.fill(row, -1);
+        return row;
+    }
+}
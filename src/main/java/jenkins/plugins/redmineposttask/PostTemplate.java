@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A subject or description with {@code ${NAME}} placeholders, parsed once
+ * into literal and variable pieces so rendering is a single pass.
+ *
+ * Values come from a {@link Resolver}, which is only asked for the
+ * variables the template actually contains. Placeholders the resolver does
+ * not know are kept verbatim.
+ */
+final class PostTemplate {
+
+    interface Resolver {
+        /**
+         * Returns the value of the variable, or null if there is no such variable.
+         */
+        String resolve(String name) throws IOException;
+    }
+
+    /**
+     * Literal text at even indexes, variable names at odd indexes.
+     */
+    private final String[] pieces;
+
+    private PostTemplate(String[] pieces) {
+        this.pieces = pieces;
+    }
+
+    static PostTemplate compile(String template) {
+        List<String> pieces = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        int from = 0;
+        while (true) {
+            int start = template.indexOf("${", from);
+            int end = start < 0 ? -1 : template.indexOf('}', start + 2);
+            if (end < 0) {
+                literal.append(template, from, template.length());
+                break;
+            }
+            String name = template.substring(start + 2, end);
+            literal.append(template, from, start);
+            if (isVariableName(name)) {
+                pieces.add(literal.toString());
+                pieces.add(name);
+                literal.setLength(0);
+            } else {
+                literal.append(template, start, end + 1);
+            }
+            from = end + 1;
+        }
+        pieces.add(literal.toString());
+        return new PostTemplate(pieces.toArray(new String[pieces.size()]));
+    }
+
+    private static boolean isVariableName(String name) {
+        if (name.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String render(Resolver resolver) throws IOException {
+        if (pieces.length == 1) {
+            return pieces[0];
+        }
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < pieces.length; i++) {
+            if (i % 2 == 0) {
+                out.append(pieces[i]);
+                continue;
+            }
+            String value = resolver.resolve(pieces[i]);
+            if (value == null) {
+                out.append("${").append(pieces[i]).append('}');
+            } else {
+                out.append(value);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.taskadapter.redmineapi.RedmineException;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Posts old builds of a job to Redmine, for example after the job was set up
+ * with this plugin or after an outage.
+ *
+ * The history is walked from the newest build down one build at a time, so
+ * a job with tens of thousands of builds is never loaded at once; at most
+ * twice as many builds as there are workers wait to be posted. Builds
+ * already linked to an issue on a target's site are skipped, so a run that
+ * was cancelled or cut short by a restart resumes when started again with
+ * the same range. The run stops early when a site's circuit breaker opens;
+ * the builds it did not get to post then count as failed.
+ */
+final class RedmineBackfill implements Runnable {
+
+    /**
+     * Running or last finished backfill by job, for the progress page.
+     */
+    private static final ConcurrentMap<String, RedmineBackfill> RUNS = new ConcurrentHashMap<String, RedmineBackfill>();
+
+    /**
+     * How long a finished run is shown on the progress page.
+     */
+    static final long KEEP_FINISHED = TimeUnit.HOURS.toMillis(1);
+
+    private final AbstractProject<?, ?> project;
+
+    private final RedminePostTask task;
+
+    private final Result result;
+
+    private final long from;
+
+    private final long to;
+
+    private final int workers;
+
+    private final TokenBucket throttle;
+
+    final AtomicInteger scanned = new AtomicInteger();
+
+    final AtomicInteger selected = new AtomicInteger();
+
+    final AtomicInteger skipped = new AtomicInteger();
+
+    final AtomicInteger posted = new AtomicInteger();
+
+    final AtomicInteger failed = new AtomicInteger();
+
+    private volatile int currentBuild;
+
+    private volatile boolean running = true;
+
+    private volatile long finishedAt;
+
+    private volatile String stopReason;
+
+    /**
+     * @param result builds with this result or a worse one up to
+     *               {@link Result#FAILURE} are posted
+     * @param from   start of the range in milliseconds, inclusive
+     * @param to     end of the range in milliseconds, exclusive
+     * @param rate   posts per second across all workers
+     */
+    private RedmineBackfill(AbstractProject<?, ?> project, RedminePostTask task, Result result, long from, long to,
+                            int workers, int rate) {
+        this.project = project;
+        this.task = task;
+        this.result = result;
+        this.from = from;
+        this.to = to;
+        this.workers = workers;
+        this.throttle = new TokenBucket(rate);
+    }
+
+    static RedmineBackfill get(AbstractProject<?, ?> project) {
+        expire(System.currentTimeMillis());
+        return RUNS.get(project.getFullName());
+    }
+
+    /**
+     * Forgets the runs that finished more than {@link #KEEP_FINISHED} before
+     * the given time, along with the jobs and builds they refer to.
+     */
+    static void expire(long now) {
+        for (Iterator<RedmineBackfill> it = RUNS.values().iterator(); it.hasNext();) {
+            RedmineBackfill backfill = it.next();
+            if (!backfill.running && now - backfill.finishedAt > KEEP_FINISHED) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Starts a backfill of the job unless one is running already.
+     *
+     * @return false if one is running
+     */
+    static boolean start(AbstractProject<?, ?> project, RedminePostTask task, Result result, long from, long to,
+                         int workers, int rate) {
+        RedmineBackfill backfill = new RedmineBackfill(project, task, result, from, to, workers, rate);
+        expire(System.currentTimeMillis());
+        synchronized (RUNS) {
+            RedmineBackfill last = RUNS.get(project.getFullName());
+            if (last != null && last.isRunning()) {
+                return false;
+            }
+            RUNS.put(project.getFullName(), backfill);
+        }
+        new NamedThreadFactory("RedmineBackfill " + project.getFullName()).newThread(backfill).start();
+        return true;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    void cancel() {
+        stop("Cancelled");
+    }
+
+    private void stop(String reason) {
+        if (stopReason == null) {
+            stopReason = reason;
+        }
+    }
+
+    /**
+     * Returns why the run stopped early, null if it did not.
+     */
+    String getStopReason() {
+        return stopReason;
+    }
+
+    int getCurrentBuild() {
+        return currentBuild;
+    }
+
+    public void run() {
+        ExecutorService pool = Executors.newFixedThreadPool(workers, new NamedThreadFactory("RedmineBackfill.worker"));
+        final Semaphore waiting = new Semaphore(workers * 2);
+        try {
+            for (AbstractBuild<?, ?> build = project.getLastBuild(); build != null && stopReason == null;
+                 build = build.getPreviousBuild()) {
+                scanned.incrementAndGet();
+                currentBuild = build.getNumber();
+                long time = build.getTimeInMillis();
+                if (time >= to) {
+                    continue;
+                }
+                if (time < from) {
+                    // older builds only get older
+                    break;
+                }
+                Result r = build.getResult();
+                if (build.isBuilding() || r == null || r.isBetterThan(result) || r.isWorseThan(Result.FAILURE)) {
+                    continue;
+                }
+                selected.incrementAndGet();
+                if (isPosted(build, task.getSiteName())) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                waiting.acquire();
+                final AbstractBuild<?, ?> selectedBuild = build;
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            post(selectedBuild);
+                        } finally {
+                            waiting.release();
+                        }
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            stop("Interrupted");
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Redmine backfill of " + project.getFullName() + " failed", e);
+            stop(e.toString());
+        } finally {
+            // builds still waiting for a worker are abandoned
+            failed.addAndGet(pool.shutdownNow().size());
+            finishedAt = System.currentTimeMillis();
+            running = false;
+        }
+        LOGGER.log(Level.INFO, "Redmine backfill of {0}: {1}", new Object[] {project.getFullName(), this});
+    }
+
+    /**
+     * Posts the build. A build that is not posted to every target, including
+     * one abandoned because the run stopped, counts as failed.
+     */
+    private void post(AbstractBuild<?, ?> build) {
+        if (stopReason != null) {
+            failed.incrementAndGet();
+            return;
+        }
+        List<RedminePost> posts;
+        try {
+            // the failure streak of an old build is long over, nothing to deduplicate with
+            posts = task.createPosts(build, false);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to render " + build + " for Redmine", e);
+            failed.incrementAndGet();
+            return;
+        }
+        boolean ok = true;
+        for (RedminePost post : posts) {
+            RedmineSite site = RedmineSite.get(post.siteName);
+            if (site == null || isPosted(build, post.siteName)) {
+                continue;
+            }
+            try {
+                if (!awaitThrottle()) {
+                    ok = false;
+                    break;
+                }
+                RedmineIssuePoster.post(site, post);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ok = false;
+                break;
+            } catch (SiteUnavailableException e) {
+                // a rate limit hit only fails this build, an open circuit breaker fails all that follow
+                if (site.getCircuitBreaker().getState() != CircuitBreaker.State.CLOSED) {
+                    stop(e.getMessage());
+                }
+                LOGGER.log(Level.FINE, "Failed to post " + build + " to Redmine", e);
+                ok = false;
+            } catch (RedmineException e) {
+                LOGGER.log(Level.WARNING, "Failed to post " + build + " to Redmine", e);
+                ok = false;
+            }
+        }
+        (ok ? posted : failed).incrementAndGet();
+    }
+
+    /**
+     * Waits for the throttle to allow a post.
+     *
+     * @return false if the run stopped in the meantime
+     */
+    private boolean awaitThrottle() throws InterruptedException {
+        while (!throttle.acquire(1000)) {
+            if (stopReason != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPosted(AbstractBuild<?, ?> build, String siteName) {
+        for (RedmineIssueAction action : build.getActions(RedmineIssueAction.class)) {
+            if (action.siteName.equals(siteName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append(running ? "running at build #" + currentBuild : "finished");
+        if (stopReason != null) {
+            s.append(", stopped: ").append(stopReason);
+        }
+        s.append("; scanned ").append(scanned).append(", selected ").append(selected)
+         .append(", already posted ").append(skipped).append(", posted ").append(posted)
+         .append(", failed ").append(failed);
+        return s.toString();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RedmineBackfill.class.getName());
+}
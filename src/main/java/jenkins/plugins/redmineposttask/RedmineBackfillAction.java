@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Failure;
+import hudson.model.Item;
+import hudson.model.Result;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * Lets users who may configure the job post its old failed builds to
+ * Redmine, see {@link RedmineBackfill}. {@code progress} returns the state
+ * as plain text for scripts.
+ */
+public final class RedmineBackfillAction implements Action {
+
+    private static final int MAX_WORKERS = 16;
+
+    private final AbstractProject<?, ?> project;
+
+    private final RedminePostTask task;
+
+    RedmineBackfillAction(AbstractProject<?, ?> project, RedminePostTask task) {
+        this.project = project;
+        this.task = task;
+    }
+
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    public String getIconFileName() {
+        return project.hasPermission(Item.CONFIGURE) ? "clipboard.png" : null;
+    }
+
+    public String getDisplayName() {
+        return "Redmine backfill";
+    }
+
+    public String getUrlName() {
+        return "redmine-backfill";
+    }
+
+    /**
+     * Returns the state of the running or last backfill, null if there was none.
+     */
+    public String getProgress() {
+        RedmineBackfill backfill = RedmineBackfill.get(project);
+        return backfill != null ? backfill.toString() : null;
+    }
+
+    public boolean isRunning() {
+        RedmineBackfill backfill = RedmineBackfill.get(project);
+        return backfill != null && backfill.isRunning();
+    }
+
+    /**
+     * @param result  UNSTABLE to post unstable and failed builds, FAILURE for failed ones only
+     * @param from    first day, yyyy-MM-dd, empty for no limit
+     * @param to      last day, yyyy-MM-dd, empty for no limit
+     * @param workers posts made at the same time
+     * @param rate    posts per second
+     */
+    @RequirePOST
+    public HttpResponse doStart(@QueryParameter String result, @QueryParameter String from,
+                                @QueryParameter String to, @QueryParameter int workers,
+                                @QueryParameter int rate) {
+        project.checkPermission(Item.CONFIGURE);
+        Result threshold = "UNSTABLE".equals(result) ? Result.UNSTABLE : Result.FAILURE;
+        Long fromDay = parseDay(from);
+        Long toDay = parseDay(to);
+        long fromTime = fromDay != null ? fromDay : 0;
+        // up to the end of the last day
+        long toTime = toDay != null ? toDay + TimeUnit.DAYS.toMillis(1) : Long.MAX_VALUE;
+        if (!RedmineBackfill.start(project, task, threshold, fromTime, toTime,
+                                   Math.min(Math.max(workers, 1), MAX_WORKERS), Math.max(rate, 1))) {
+            throw new Failure("A Redmine backfill of " + project.getFullDisplayName() + " is running already");
+        }
+        return HttpResponses.redirectToDot();
+    }
+
+    @RequirePOST
+    public HttpResponse doCancel() {
+        project.checkPermission(Item.CONFIGURE);
+        RedmineBackfill backfill = RedmineBackfill.get(project);
+        if (backfill != null) {
+            backfill.cancel();
+        }
+        return HttpResponses.redirectToDot();
+    }
+
+    public HttpResponse doProgress() {
+        project.checkPermission(Item.CONFIGURE);
+        String progress = getProgress();
+        return HttpResponses.plainText(progress != null ? progress : "No backfill has run");
+    }
+
+    private static Long parseDay(String day) {
+        if (day == null || day.trim().length() == 0) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        format.setLenient(false);
+        try {
+            return format.parse(day.trim()).getTime();
+        } catch (ParseException e) {
+            throw new Failure("Not a yyyy-MM-dd date: " + day);
+        }
+    }
+}
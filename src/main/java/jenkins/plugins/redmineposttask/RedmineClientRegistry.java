@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.taskadapter.redmineapi.RedmineManager;
+import com.taskadapter.redmineapi.RedmineManagerFactory;
+import com.taskadapter.redmineapi.TransportConfiguration;
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Keeps one pooled {@link RedmineManager} per {@link RedmineSite} so that
+ * consecutive posts reuse keep-alive connections instead of opening a new
+ * HTTP client (and TLS handshake) every time.
+ *
+ * Callers must pair {@link #acquire(RedmineSite)} with {@link #release(Client)}.
+ * When the site list is reconfigured, {@link #retireAll()} drops every client;
+ * a retired client is shut down as soon as its last lease is released. Only
+ * the configured site instances get pooled clients; a post still holding a
+ * replaced instance gets a client of its own that is shut down on release.
+ */
+final class RedmineClientRegistry {
+
+    static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+    static final int DEFAULT_IDLE_TIMEOUT = 60;
+
+    private static final String PROPERTY_PREFIX = RedmineClientRegistry.class.getName();
+
+    // milliseconds, so a hung Redmine cannot hold a posting thread for good
+    private static final int CONNECT_TIMEOUT = Integer.getInteger(PROPERTY_PREFIX + ".connectTimeout", 10000);
+    private static final int READ_TIMEOUT = Integer.getInteger(PROPERTY_PREFIX + ".readTimeout", 60000);
+
+    private static final ConcurrentMap<RedmineSite, Client> CLIENTS =
+            new ConcurrentHashMap<RedmineSite, Client>();
+
+    // pool settings, set by the global configuration
+    private static volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private static volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private RedmineClientRegistry() {
+    }
+
+    static Client acquire(RedmineSite site) {
+        while (true) {
+            if (RedmineSite.get(site.name) != site) {
+                // replaced by a reconfiguration, retireAll() would never see a pooled client of it
+                Client client = new Client(site);
+                client.retired = true;
+                client.leases.incrementAndGet();
+                return client;
+            }
+            Client client = CLIENTS.get(site);
+            if (client == null) {
+                Client created = new Client(site);
+                client = CLIENTS.putIfAbsent(site, created);
+                if (client == null) {
+                    client = created;
+                } else {
+                    created.close();
+                }
+            }
+            client.leases.incrementAndGet();
+            if (!client.retired) {
+                if (RedmineSite.get(site.name) == site) {
+                    return client;
+                }
+                // replaced since the check above, retireAll() may have run before the client was added
+                retire(site, client);
+            }
+            // lost the race against retireAll(), try again
+            release(client);
+        }
+    }
+
+    static void release(Client client) {
+        if (client.leases.decrementAndGet() == 0 && client.retired) {
+            client.close();
+        }
+    }
+
+    /**
+     * Sets the pool settings. Clients created before keep their pool size.
+     */
+    static void configure(int maxConnections, int idleTimeout) {
+        RedmineClientRegistry.maxConnections = maxConnections;
+        RedmineClientRegistry.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Retires every client. Called when the site list is replaced.
+     */
+    static void retireAll() {
+        for (Map.Entry<RedmineSite, Client> entry : CLIENTS.entrySet()) {
+            retire(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void retire(RedmineSite site, Client client) {
+        if (CLIENTS.remove(site, client)) {
+            LOGGER.log(Level.FINE, "Retiring Redmine client of site {0}, {1} lease(s) outstanding",
+                       new Object[] {client.siteName, client.leases.get()});
+            client.retired = true;
+            if (client.leases.get() == 0) {
+                client.close();
+            }
+        }
+    }
+
+    static void evictIdleConnections() {
+        for (Client client : CLIENTS.values()) {
+            client.connections.closeExpiredConnections();
+            client.connections.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+        }
+    }
+
+    static final class Client {
+
+        final RedmineManager manager;
+
+        private final String siteName;
+
+        private final ClientConnectionManager connections;
+
+        private final AtomicInteger leases = new AtomicInteger();
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private volatile boolean retired;
+
+        private Client(RedmineSite site) {
+            siteName = site.name;
+            connections = RedmineManagerFactory.createDefaultConnectionManager();
+            if (connections instanceof PoolingClientConnectionManager) {
+                PoolingClientConnectionManager pool = (PoolingClientConnectionManager) connections;
+                pool.setMaxTotal(maxConnections);
+                pool.setDefaultMaxPerRoute(maxConnections);
+            }
+            TransportConfiguration config = RedmineManagerFactory.createShortTermConfig(connections);
+            HttpParams params = config.client.getParams();
+            HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+            HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+            manager = RedmineManagerFactory.createWithApiKey(site.url.toString(), site.apiAccessKey, config);
+        }
+
+        boolean isClosed() {
+            return closed.get();
+        }
+
+        private void close() {
+            if (closed.compareAndSet(false, true)) {
+                LOGGER.log(Level.FINE, "Shutting down Redmine client of site {0}", siteName);
+                try {
+                    manager.shutdown();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to shut down Redmine client of site " + siteName, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes pooled connections that have been idle longer than the configured timeout.
+     */
+    @Extension
+    public static final class IdleConnectionEvictor extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return 30 * 1000;
+        }
+
+        @Override
+        protected void doRun() {
+            evictIdleConnections();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RedmineClientRegistry.class.getName());
+}
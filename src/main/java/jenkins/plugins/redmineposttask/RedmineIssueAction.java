@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.model.Action;
+import jenkins.plugins.redmineposttask.RedmineIssueTracker.TrackedIssue;
+
+/**
+ * Links a build to the Redmine issue it was posted to. Only the site and
+ * issue id are saved with the build; status and assignee come from the
+ * {@link RedmineIssueTracker}.
+ */
+public final class RedmineIssueAction implements Action {
+
+    final String siteName;
+
+    final int issueId;
+
+    RedmineIssueAction(String siteName, int issueId) {
+        this.siteName = siteName;
+        this.issueId = issueId;
+    }
+
+    public int getIssueId() {
+        return issueId;
+    }
+
+    public String getSiteName() {
+        return siteName;
+    }
+
+    /**
+     * Returns the issue's page in Redmine, null if the site was removed.
+     */
+    public String getIssueUrl() {
+        RedmineSite site = RedmineSite.get(siteName);
+        return site != null ? site.url + "issues/" + issueId : null;
+    }
+
+    /**
+     * Returns the last known status, null until the issue was first synced.
+     */
+    public String getStatus() {
+        TrackedIssue issue = RedmineIssueTracker.get().getIssue(siteName, issueId);
+        return issue != null ? issue.status : null;
+    }
+
+    public String getAssignee() {
+        TrackedIssue issue = RedmineIssueTracker.get().getIssue(siteName, issueId);
+        return issue != null ? issue.assignee : null;
+    }
+
+    public String getIconFileName() {
+        return getIssueUrl() != null ? "clipboard.png" : null;
+    }
+
+    public String getDisplayName() {
+        String status = getStatus();
+        return "Redmine #" + issueId + (status != null ? " (" + status + ")" : "");
+    }
+
+    public String getUrlName() {
+        return getIssueUrl();
+    }
+}
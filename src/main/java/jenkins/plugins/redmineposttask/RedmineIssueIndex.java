@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.XmlFile;
+import hudson.init.Terminator;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Remembers which Redmine issue is open for a job's recurring failure.
+ *
+ * Keys are {@code job@site@fingerprint}. The index is a hash map in LRU
+ * order bounded to {@link #MAX_ENTRIES}, persisted under JENKINS_HOME by a
+ * background save shortly after it changes. The keys of each job are also
+ * kept in a set of their own, so forgetting a job does not scan the index.
+ * {@link #lock(String)} serializes concurrent builds reporting the same
+ * failure so only one of them creates the issue.
+ */
+final class RedmineIssueIndex {
+
+    private static final int MAX_ENTRIES = Integer.getInteger(RedmineIssueIndex.class.getName() + ".maxEntries",
+                                                              10000);
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final long SAVE_DELAY = 1000;
+
+    private static final RedmineIssueIndex INSTANCE = new RedmineIssueIndex(null, MAX_ENTRIES);
+
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+
+    private final DebouncedSave saver = new DebouncedSave(new Runnable() {
+        public void run() {
+            saveNow();
+        }
+    }, SAVE_DELAY);
+
+    /**
+     * File of the index, null for redmine-posttask/issue-index.xml under JENKINS_HOME.
+     */
+    private final File indexFile;
+
+    private final int maxEntries;
+
+    private LinkedHashMap<String, Integer> issues;
+
+    /**
+     * Keys of the index by job name.
+     */
+    private final Map<String, Set<String>> jobKeys = new HashMap<String, Set<String>>();
+
+    RedmineIssueIndex(File indexFile, int maxEntries) {
+        this.indexFile = indexFile;
+        this.maxEntries = maxEntries;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    static RedmineIssueIndex get() {
+        return INSTANCE;
+    }
+
+    static String key(String jobName, String siteName, String fingerprint) {
+        return jobName + "@" + siteName + "@" + fingerprint;
+    }
+
+    Lock lock(String key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    synchronized Integer getIssueId(String key) {
+        return load().get(key);
+    }
+
+    synchronized void put(String key, int issueId) {
+        if (load().put(key, issueId) == null) {
+            index(key);
+        }
+        save();
+    }
+
+    synchronized void remove(String key) {
+        if (load().remove(key) != null) {
+            unindex(key);
+            save();
+        }
+    }
+
+    /**
+     * Forgets every failure of the job, typically because it passed again.
+     */
+    synchronized void forgetJob(String jobName) {
+        load();
+        Set<String> keys = jobKeys.remove(jobName);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            issues.remove(key);
+        }
+        save();
+    }
+
+    /**
+     * Forgets the failures posted to any of the site's issues, typically
+     * because they were closed.
+     */
+    synchronized void forgetIssues(String siteName, Collection<Integer> issueIds) {
+        String site = "@" + siteName + "@";
+        String siteProject = "@" + siteName + "/";
+        boolean changed = false;
+        for (Iterator<Map.Entry<String, Integer>> it = load().entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Integer> entry = it.next();
+            if ((entry.getKey().contains(site) || entry.getKey().contains(siteProject))
+                && issueIds.contains(entry.getValue())) {
+                it.remove();
+                unindex(entry.getKey());
+                changed = true;
+            }
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    private LinkedHashMap<String, Integer> load() {
+        if (issues != null) {
+            return issues;
+        }
+        issues = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                if (size() <= maxEntries) {
+                    return false;
+                }
+                unindex(eldest.getKey());
+                return true;
+            }
+        };
+        XmlFile file = getFile();
+        if (file.exists()) {
+            try {
+                @SuppressWarnings("unchecked")
+                Map<String, Integer> stored = (Map<String, Integer>) file.read();
+                issues.putAll(stored);
+                for (String key : issues.keySet()) {
+                    index(key);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+            }
+        }
+        return issues;
+    }
+
+    private void index(String key) {
+        String jobName = jobOf(key);
+        Set<String> keys = jobKeys.get(jobName);
+        if (keys == null) {
+            keys = new HashSet<String>();
+            jobKeys.put(jobName, keys);
+        }
+        keys.add(key);
+    }
+
+    private void unindex(String key) {
+        String jobName = jobOf(key);
+        Set<String> keys = jobKeys.get(jobName);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            jobKeys.remove(jobName);
+        }
+    }
+
+    /**
+     * Returns the job name of the key. Jenkins does not allow '@' in job
+     * names, so the job ends at the first one.
+     */
+    private static String jobOf(String key) {
+        int at = key.indexOf('@');
+        return at < 0 ? key : key.substring(0, at);
+    }
+
+    private void save() {
+        saver.request();
+    }
+
+    /**
+     * Writes the index. Only the copy is taken under the lock, lookups do
+     * not wait for the disk.
+     */
+    void saveNow() {
+        LinkedHashMap<String, Integer> copy;
+        synchronized (this) {
+            if (issues == null) {
+                return;
+            }
+            // a plain copy keeps the LRU order without persisting the anonymous subclass
+            copy = new LinkedHashMap<String, Integer>(issues);
+        }
+        XmlFile file = getFile();
+        synchronized (saver) {
+            try {
+                file.write(copy);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+            }
+        }
+    }
+
+    private XmlFile getFile() {
+        return new XmlFile(indexFile != null
+                           ? indexFile : new File(Jenkins.getInstance().getRootDir(), "redmine-posttask/issue-index.xml"));
+    }
+
+    @Terminator
+    public static void saveOnShutdown() {
+        INSTANCE.saveNow();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RedmineIssueIndex.class.getName());
+}
@@ -0,0 +1,253 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.taskadapter.redmineapi.RedmineException;
+import com.taskadapter.redmineapi.bean.Issue;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.plugins.redmineposttask.RedmineIssueTracker.TrackedIssue;
+
+/**
+ * Refreshes the status and assignee of the issues in the
+ * {@link RedmineIssueTracker}.
+ *
+ * Issues are asked for {@link #BATCH_SIZE} at a time with an {@code issue_id}
+ * filter. Issues fetched before are only returned if they were updated since
+ * the newest update seen on their site, so a cycle over thousands of quiet
+ * issues costs one request per batch and transfers next to nothing. Closed
+ * issues are not asked for again, and the failures posted to them get new
+ * issues when they come back. So do the failures of issues Redmine does not
+ * return when first asked for, which are no longer tracked. At most
+ * {@link #PARALLELISM} batches run at once across all sites, each going
+ * through the site's rate limit and circuit breaker like a post does.
+ */
+@Extension
+public final class RedmineIssuePoller extends AsyncPeriodicWork {
+
+    private static final String PROPERTY_PREFIX = RedmineIssuePoller.class.getName();
+
+    private static final int POLL_INTERVAL = Integer.getInteger(PROPERTY_PREFIX + ".pollInterval", 5);
+
+    private static final int PARALLELISM = Integer.getInteger(PROPERTY_PREFIX + ".parallelism", 4);
+
+    /**
+     * Largest page Redmine returns.
+     */
+    static final int BATCH_SIZE = 100;
+
+    private static final ExecutorService BATCHES =
+            Executors.newFixedThreadPool(Math.max(PARALLELISM, 1), new NamedThreadFactory("RedmineIssuePoller.batch"));
+
+    public RedmineIssuePoller() {
+        super("Redmine issue status sync");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return POLL_INTERVAL * MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws InterruptedException {
+        RedmineIssueTracker tracker = RedmineIssueTracker.get();
+        List<Future<Void>> batches = new ArrayList<Future<Void>>();
+        for (Map.Entry<String, List<TrackedIssue>> entry : tracker.getOpenIssuesBySite().entrySet()) {
+            RedmineSite site = RedmineSite.get(entry.getKey());
+            if (site == null) {
+                continue;
+            }
+            for (Batch batch : plan(site, entry.getValue())) {
+                batches.add(BATCHES.submit(batch));
+            }
+        }
+
+        // a cycle that has not finished by the next one is cut short
+        long deadline = System.currentTimeMillis() + getRecurrencePeriod();
+        try {
+            for (Future<Void> batch : batches) {
+                try {
+                    batch.get(Math.max(deadline - System.currentTimeMillis(), 0),
+                                         TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.FINE, "Failed to refresh Redmine issues", e.getCause());
+                } catch (TimeoutException e) {
+                    LOGGER.log(Level.WARNING, "Redmine issue status sync did not finish in time");
+                    break;
+                }
+            }
+        } finally {
+            for (Future<Void> batch : batches) {
+                batch.cancel(true);
+            }
+        }
+        listener.getLogger().println("Refreshed " + batches.size() + " batch(es) of Redmine issues");
+    }
+
+    /**
+     * Splits a site's open issues into the batches that refresh them.
+     */
+    static List<Batch> plan(RedmineSite site, List<TrackedIssue> issues) {
+        List<Integer> fresh = new ArrayList<Integer>();
+        List<Integer> known = new ArrayList<Integer>();
+        long newest = 0;
+        for (TrackedIssue issue : issues) {
+            if (issue.isFetched()) {
+                known.add(issue.id);
+                newest = Math.max(newest, issue.updatedOn);
+            } else {
+                fresh.add(issue.id);
+            }
+        }
+        List<Batch> batches = new ArrayList<Batch>();
+        addBatches(batches, site, fresh, null);
+        addBatches(batches, site, known, newest > 0 ? updatedSince(newest) : null);
+        return batches;
+    }
+
+    private static void addBatches(List<Batch> batches, RedmineSite site, List<Integer> ids, String updatedSince) {
+        for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+            batches.add(new Batch(site, ids.subList(i, Math.min(i + BATCH_SIZE, ids.size())), updatedSince));
+        }
+    }
+
+    /**
+     * Returns the {@code updated_on} filter value for issues updated since
+     * the given time. Redmine compares dates in the user's time zone, so the
+     * filter starts a day early; issues updated in between are fetched again.
+     */
+    static String updatedSince(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return ">=" + format.format(new Date(time - TimeUnit.DAYS.toMillis(1)));
+    }
+
+    /**
+     * Fetches one batch of a site's issues and stores the result.
+     */
+    static final class Batch implements Callable<Void> {
+
+        private final RedmineSite site;
+
+        final List<Integer> ids;
+
+        /**
+         * {@code updated_on} filter, null for issues never fetched.
+         */
+        final String updatedSince;
+
+        Batch(RedmineSite site, List<Integer> ids, String updatedSince) {
+            this.site = site;
+            this.ids = ids;
+            this.updatedSince = updatedSince;
+        }
+
+        /**
+         * Returns the parameters of the issue query.
+         */
+        Map<String, String> query() {
+            StringBuilder idList = new StringBuilder();
+            for (Integer id : ids) {
+                if (idList.length() > 0) {
+                    idList.append(',');
+                }
+                idList.append(id);
+            }
+            Map<String, String> params = new HashMap<String, String>();
+            params.put("issue_id", idList.toString());
+            // closed issues too
+            params.put("status_id", "*");
+            params.put("limit", String.valueOf(BATCH_SIZE));
+            if (updatedSince != null) {
+                params.put("updated_on", updatedSince);
+            }
+            return params;
+        }
+
+        public Void call() throws RedmineException {
+            Map<String, String> params = query();
+            site.acquireCall();
+            CircuitBreaker breaker = site.getCircuitBreaker();
+            List<Issue> fetched;
+            Set<Integer> closedStatusIds;
+            boolean reported = false;
+            try {
+                RedmineClientRegistry.Client client = RedmineClientRegistry.acquire(site);
+                try {
+                    closedStatusIds = site.getClosedStatusIds(client.manager);
+                    site.acquireRequest();
+                    fetched = client.manager.getIssueManager().getIssues(params);
+                } finally {
+                    RedmineClientRegistry.release(client);
+                }
+                breaker.onSuccess();
+                reported = true;
+            } catch (SiteUnavailableException ex) {
+                // over the rate limit, Redmine itself was fine
+                throw ex;
+            } catch (RedmineException ex) {
+                if (RedmineIssuePoster.isRetryable(ex)) {
+                    breaker.onFailure();
+                } else {
+                    breaker.onSuccess();
+                }
+                reported = true;
+                throw ex;
+            } finally {
+                if (!reported) {
+                    // nothing learned about the site, but a half-open trial must be given back
+                    breaker.onIgnored();
+                }
+            }
+            List<Integer> gone = RedmineIssueTracker.get().update(site.name, fetched,
+                    updatedSince == null ? ids : Collections.<Integer>emptyList(), closedStatusIds);
+            if (!gone.isEmpty()) {
+                RedmineIssueIndex.get().forgetIssues(site.name, gone);
+            }
+            return null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RedmineIssuePoller.class.getName());
+}
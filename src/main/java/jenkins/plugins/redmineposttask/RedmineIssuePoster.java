@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.taskadapter.redmineapi.IssueManager;
+import com.taskadapter.redmineapi.NotFoundException;
+import com.taskadapter.redmineapi.RedmineAuthenticationException;
+import com.taskadapter.redmineapi.RedmineException;
+import com.taskadapter.redmineapi.RedmineManager;
+import com.taskadapter.redmineapi.RedmineProcessingException;
+import com.taskadapter.redmineapi.bean.Attachment;
+import com.taskadapter.redmineapi.bean.Issue;
+import com.taskadapter.redmineapi.bean.IssueFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates Redmine issues for {@link RedminePost}s.
+ */
+final class RedmineIssuePoster {
+
+    private RedmineIssuePoster() {
+    }
+
+    static Issue post(RedmineSite site, RedminePost post) throws RedmineException {
+        SiteMetrics metrics = SiteMetrics.get(site.name);
+        metrics.recordPost(post.description);
+        try {
+            site.acquireCall();
+        } catch (SiteUnavailableException ex) {
+            metrics.recordFailure(ex);
+            throw ex;
+        }
+        CircuitBreaker breaker = site.getCircuitBreaker();
+        Issue issue;
+        boolean reported = false;
+        try {
+            issue = guardedPost(site, post);
+            breaker.onSuccess();
+            reported = true;
+        } catch (SiteUnavailableException ex) {
+            // over the rate limit, Redmine itself was fine
+            metrics.recordFailure(ex);
+            throw ex;
+        } catch (RedmineException ex) {
+            metrics.recordFailure(ex);
+            if (isRetryable(ex)) {
+                breaker.onFailure();
+            } else {
+                // Redmine answered, it just did not like the request
+                breaker.onSuccess();
+            }
+            reported = true;
+            throw ex;
+        } finally {
+            if (!reported) {
+                // nothing learned about the site, but a half-open trial must be given back
+                breaker.onIgnored();
+            }
+        }
+        RedmineIssueTracker.get().track(site, post, issue.getId());
+        return issue;
+    }
+
+    private static Issue guardedPost(RedmineSite site, RedminePost post) throws RedmineException {
+        if (post.fingerprint == null) {
+            return create(site, post);
+        }
+        RedmineIssueIndex index = RedmineIssueIndex.get();
+        String key = RedmineIssueIndex.key(post.jobName, post.getTarget(), post.fingerprint);
+        Lock lock = index.lock(key);
+        lock.lock();
+        try {
+            Integer issueId = index.getIssueId(key);
+            if (issueId != null && RedmineIssueTracker.get().isClosed(site.name, issueId)) {
+                // closed since, the failure is back and deserves a new issue
+                index.remove(key);
+                issueId = null;
+            }
+            if (issueId != null) {
+                try {
+                    return addNote(site, issueId, post);
+                } catch (NotFoundException ex) {
+                    // deleted in Redmine, start over with a new issue
+                    index.remove(key);
+                }
+            }
+            Issue issue = create(site, post);
+            index.put(key, issue.getId());
+            return issue;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the post as a note to an existing issue.
+     */
+    private static Issue addNote(RedmineSite site, int issueId, RedminePost post) throws RedmineException {
+        RedmineClientRegistry.Client client = RedmineClientRegistry.acquire(site);
+        try {
+            Issue redmineIssue = IssueFactory.create(issueId);
+            boolean attached = attachLog(site, client.manager, redmineIssue, post);
+            redmineIssue.setNotes("h2. " + post.subject + "\n\n" + describe(post, attached));
+            site.acquireRequest();
+            long start = System.nanoTime();
+            client.manager.getIssueManager().update(redmineIssue);
+            SiteMetrics.get(site.name).recordPhase(SiteMetrics.Phase.CREATE_ISSUE, start);
+            return redmineIssue;
+        } finally {
+            RedmineClientRegistry.release(client);
+        }
+    }
+
+    private static Issue create(RedmineSite site, RedminePost post) throws RedmineException {
+        RedmineClientRegistry.Client client = RedmineClientRegistry.acquire(site);
+        try {
+            RedmineManager mgr = client.manager;
+
+            // project id and user come from the per-site cache
+            RedmineSite.Metadata metadata = site.getMetadata(mgr);
+
+            int projectId = post.projectKey != null
+                            ? site.getProjectId(mgr, post.projectKey) : metadata.projectId;
+            Issue redmineIssue = IssueFactory.create(projectId, post.subject);
+            boolean attached = attachLog(site, mgr, redmineIssue, post);
+            redmineIssue.setDescription(describe(post, attached));
+            redmineIssue.setAssignee(metadata.currentUser);
+            IssueManager issueMgr = mgr.getIssueManager();
+            site.acquireRequest();
+            long start = System.nanoTime();
+            Issue created = issueMgr.createIssue(redmineIssue);
+            SiteMetrics.get(site.name).recordPhase(SiteMetrics.Phase.CREATE_ISSUE, start);
+            return created;
+        } catch (NotFoundException ex) {
+            // the cached project may have been renamed or removed
+            site.invalidateMetadata();
+            throw ex;
+        } finally {
+            RedmineClientRegistry.release(client);
+        }
+    }
+
+    /**
+     * Uploads the console log of the post, if it asks for one, and adds it to
+     * the issue. A log that cannot be read does not keep the issue from being
+     * posted; a failed upload does, so that the post is retried.
+     *
+     * @return whether the log was attached
+     */
+    private static boolean attachLog(RedmineSite site, RedmineManager mgr, Issue issue, RedminePost post)
+            throws RedmineException {
+        if (post.logFile == null) {
+            return false;
+        }
+        site.acquireRequest();
+        long start = System.nanoTime();
+        try {
+            Attachment attachment = LogAttachment.upload(mgr.getAttachmentManager(), post);
+            if (attachment != null) {
+                issue.addAttachment(attachment);
+                SiteMetrics.get(site.name).recordPhase(SiteMetrics.Phase.UPLOAD_LOG, start);
+                return true;
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Posting " + post + " without its console log", ex);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the description of the post, followed by what became of its
+     * console log. A post that asked for the log has only a short excerpt.
+     */
+    static String describe(RedminePost post, boolean attached) {
+        if (post.logFile == null) {
+            return post.description;
+        }
+        if (!attached) {
+            return post.description + "\n\nThe console log could not be attached.";
+        }
+        if (LogAttachment.isCut(new File(post.logFile), post.logMaxBytes)) {
+            return post.description + "\n\nLast " + post.logMaxBytes + " bytes of the console log attached.";
+        }
+        return post.description + "\n\nFull console log attached.";
+    }
+
+    /**
+     * Whether posting again may succeed. Rejected credentials, missing
+     * projects and validation errors will fail the same way every time.
+     */
+    static boolean isRetryable(RedmineException ex) {
+        return !(ex instanceof RedmineAuthenticationException
+                 || ex instanceof NotFoundException
+                 || ex instanceof RedmineProcessingException);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RedmineIssuePoster.class.getName());
+}
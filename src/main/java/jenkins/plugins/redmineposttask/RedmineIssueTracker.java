@@ -0,0 +1,432 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.taskadapter.redmineapi.bean.Issue;
+import com.taskadapter.redmineapi.bean.User;
+import hudson.XmlFile;
+import hudson.init.Terminator;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Local cache of the status and assignee of the issues posted by this plugin.
+ *
+ * Keys are {@code site#id}. Like {@link RedmineIssueIndex} the cache is a
+ * hash map in LRU order bounded to {@link #MAX_ENTRIES} and persisted under
+ * JENKINS_HOME by a background save shortly after it changes. Entries are
+ * immutable and replaced on every change, so build and job pages read them
+ * without talking to Redmine. Open issues are refreshed by
+ * {@link RedmineIssuePoller}; closed ones are kept while a job still lists
+ * them among its {@link #MAX_JOB_ISSUES} most recent issues.
+ */
+final class RedmineIssueTracker {
+
+    private static final int MAX_ENTRIES = Integer.getInteger(RedmineIssueTracker.class.getName() + ".maxEntries",
+                                                              10000);
+
+    private static final int MAX_JOBS = Integer.getInteger(RedmineIssueTracker.class.getName() + ".maxJobs", 1000);
+
+    static final int MAX_JOB_ISSUES = 10;
+
+    private static final long SAVE_DELAY = 1000;
+
+    private static final String ISSUES_FILE = "tracked-issues.xml";
+
+    private static final String JOBS_FILE = "tracked-jobs.xml";
+
+    private static final RedmineIssueTracker INSTANCE = new RedmineIssueTracker(null);
+
+    private final DebouncedSave saver = new DebouncedSave(new Runnable() {
+        public void run() {
+            saveNow();
+        }
+    }, SAVE_DELAY);
+
+    /**
+     * Directory of the files, null for redmine-posttask under JENKINS_HOME.
+     */
+    private final File dir;
+
+    private LinkedHashMap<String, TrackedIssue> issues;
+
+    /**
+     * Keys of the most recent issues of each job, newest first.
+     */
+    private LinkedHashMap<String, LinkedList<String>> jobs;
+
+    RedmineIssueTracker(File dir) {
+        this.dir = dir;
+    }
+
+    static RedmineIssueTracker get() {
+        return INSTANCE;
+    }
+
+    private static String key(String siteName, int issueId) {
+        return siteName + "#" + issueId;
+    }
+
+    /**
+     * Starts tracking the issue a post went to and links it from the build
+     * that made the post. Does nothing while Jenkins is not running.
+     */
+    void track(RedmineSite site, RedminePost post, int issueId) {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return;
+        }
+        remember(site.name, post.jobName, issueId);
+        AbstractProject<?, ?> project = jenkins.getItemByFullName(post.jobName, AbstractProject.class);
+        AbstractBuild<?, ?> build = project != null ? project.getBuildByNumber(post.buildNumber) : null;
+        if (build == null) {
+            return;
+        }
+        for (RedmineIssueAction action : build.getActions(RedmineIssueAction.class)) {
+            if (action.siteName.equals(site.name) && action.issueId == issueId) {
+                return;
+            }
+        }
+        build.addAction(new RedmineIssueAction(site.name, issueId));
+        try {
+            build.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save " + build + " with Redmine issue #" + issueId, e);
+        }
+    }
+
+    /**
+     * Starts tracking the issue and puts it first among the job's issues.
+     */
+    synchronized void remember(String siteName, String jobName, int issueId) {
+        String key = key(siteName, issueId);
+        if (load().get(key) == null) {
+            issues.put(key, new TrackedIssue(siteName, issueId, null, null, 0, false));
+        }
+        LinkedList<String> recent = jobs.get(jobName);
+        if (recent == null) {
+            recent = new LinkedList<String>();
+            jobs.put(jobName, recent);
+        }
+        if (!key.equals(recent.peekFirst())) {
+            recent.remove(key);
+            recent.addFirst(key);
+            if (recent.size() > MAX_JOB_ISSUES) {
+                pruneIfClosed(recent.removeLast());
+            }
+        }
+        save();
+    }
+
+    synchronized TrackedIssue getIssue(String siteName, int issueId) {
+        return load().get(key(siteName, issueId));
+    }
+
+    /**
+     * Whether the issue was closed when it was last synced.
+     */
+    boolean isClosed(String siteName, int issueId) {
+        TrackedIssue issue = getIssue(siteName, issueId);
+        return issue != null && issue.closed;
+    }
+
+    /**
+     * Returns the most recent issues posted by the job, newest first.
+     */
+    synchronized List<TrackedIssue> getJobIssues(String jobName) {
+        List<TrackedIssue> list = new ArrayList<TrackedIssue>();
+        load();
+        LinkedList<String> recent = jobs.get(jobName);
+        if (recent != null) {
+            for (String key : recent) {
+                TrackedIssue issue = issues.get(key);
+                if (issue != null) {
+                    list.add(issue);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the issues that were open when they were last synced, grouped
+     * by site.
+     */
+    synchronized Map<String, List<TrackedIssue>> getOpenIssuesBySite() {
+        Map<String, List<TrackedIssue>> bySite = new LinkedHashMap<String, List<TrackedIssue>>();
+        for (TrackedIssue issue : load().values()) {
+            if (issue.closed) {
+                continue;
+            }
+            List<TrackedIssue> list = bySite.get(issue.siteName);
+            if (list == null) {
+                list = new ArrayList<TrackedIssue>();
+                bySite.put(issue.siteName, list);
+            }
+            list.add(issue);
+        }
+        return bySite;
+    }
+
+    /**
+     * Stores what Redmine returned for some of the site's issues.
+     *
+     * @param requested ids of never fetched issues the answer covers; those
+     *                  missing from it were deleted or are not visible to the
+     *                  site's user, and are no longer tracked
+     * @param closedStatusIds ids of the site's statuses that close an issue
+     * @return ids of the issues found closed that were open before, and of
+     *         the issues no longer tracked
+     */
+    synchronized List<Integer> update(String siteName, List<Issue> fetched, List<Integer> requested,
+                                      Set<Integer> closedStatusIds) {
+        load();
+        boolean changed = false;
+        List<Integer> closed = new ArrayList<Integer>();
+        Set<Integer> seen = new HashSet<Integer>();
+        for (Issue issue : fetched) {
+            seen.add(issue.getId());
+            String key = key(siteName, issue.getId());
+            TrackedIssue old = issues.get(key);
+            if (old == null) {
+                // evicted while the poll was running
+                continue;
+            }
+            User assignee = issue.getAssignee();
+            TrackedIssue updated = new TrackedIssue(siteName, issue.getId(), issue.getStatusName(),
+                                                    assignee != null ? assignee.getFullName() : null,
+                                                    issue.getUpdatedOn() != null
+                                                    ? issue.getUpdatedOn().getTime() : TrackedIssue.NO_DATE,
+                                                    closedStatusIds.contains(issue.getStatusId()));
+            if (!updated.equals(old)) {
+                issues.put(key, updated);
+                changed = true;
+                if (updated.closed && !old.closed) {
+                    closed.add(updated.id);
+                    pruneIfClosed(key);
+                }
+            }
+        }
+        for (Integer id : requested) {
+            String key = key(siteName, id);
+            TrackedIssue old = issues.get(key);
+            if (old != null && !seen.contains(id) && !old.isFetched()) {
+                forget(key);
+                closed.add(id);
+                changed = true;
+            }
+        }
+        if (changed) {
+            save();
+        }
+        return closed;
+    }
+
+    /**
+     * Stops tracking the issue if it is closed and no job lists it any more.
+     */
+    private void pruneIfClosed(String key) {
+        TrackedIssue issue = issues.get(key);
+        if (issue == null || !issue.closed) {
+            return;
+        }
+        for (LinkedList<String> recent : jobs.values()) {
+            if (recent.contains(key)) {
+                return;
+            }
+        }
+        issues.remove(key);
+    }
+
+    /**
+     * Stops tracking the issue and takes it off the jobs that list it.
+     */
+    private void forget(String key) {
+        issues.remove(key);
+        for (Iterator<LinkedList<String>> it = jobs.values().iterator(); it.hasNext();) {
+            LinkedList<String> recent = it.next();
+            if (recent.remove(key) && recent.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private LinkedHashMap<String, TrackedIssue> load() {
+        if (issues != null) {
+            return issues;
+        }
+        issues = new LinkedHashMap<String, TrackedIssue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TrackedIssue> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        jobs = new LinkedHashMap<String, LinkedList<String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LinkedList<String>> eldest) {
+                return size() > MAX_JOBS;
+            }
+        };
+        XmlFile file = getFile(ISSUES_FILE);
+        if (file.exists()) {
+            try {
+                @SuppressWarnings("unchecked")
+                Map<String, TrackedIssue> stored = (Map<String, TrackedIssue>) file.read();
+                issues.putAll(stored);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+            }
+        }
+        file = getFile(JOBS_FILE);
+        if (file.exists()) {
+            try {
+                @SuppressWarnings("unchecked")
+                Map<String, List<String>> stored = (Map<String, List<String>>) file.read();
+                for (Map.Entry<String, List<String>> entry : stored.entrySet()) {
+                    jobs.put(entry.getKey(), new LinkedList<String>(entry.getValue()));
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+            }
+        }
+        return issues;
+    }
+
+    private void save() {
+        saver.request();
+    }
+
+    /**
+     * Writes the tracker. Only the copies are taken under the lock, posts and
+     * pages do not wait for the disk.
+     */
+    void saveNow() {
+        // plain copies keep the LRU order without persisting the anonymous subclasses
+        LinkedHashMap<String, TrackedIssue> issuesCopy;
+        LinkedHashMap<String, List<String>> jobsCopy = new LinkedHashMap<String, List<String>>();
+        synchronized (this) {
+            if (issues == null) {
+                return;
+            }
+            issuesCopy = new LinkedHashMap<String, TrackedIssue>(issues);
+            for (Map.Entry<String, LinkedList<String>> entry : jobs.entrySet()) {
+                jobsCopy.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+            }
+        }
+        synchronized (saver) {
+            write(getFile(ISSUES_FILE), issuesCopy);
+            write(getFile(JOBS_FILE), jobsCopy);
+        }
+    }
+
+    private static void write(XmlFile file, Object o) {
+        try {
+            file.write(o);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+        }
+    }
+
+    private XmlFile getFile(String name) {
+        return new XmlFile(new File(dir != null ? dir : new File(Jenkins.getInstance().getRootDir(), "redmine-posttask"),
+                                    name));
+    }
+
+    @Terminator
+    public static void saveOnShutdown() {
+        INSTANCE.saveNow();
+    }
+
+    /**
+     * Last known state of one issue.
+     */
+    static final class TrackedIssue {
+
+        /**
+         * {@link #updatedOn} of an issue Redmine returned without a date.
+         */
+        static final long NO_DATE = -1;
+
+        final String siteName;
+
+        final int id;
+
+        final String status;
+
+        final String assignee;
+
+        /**
+         * Last update in Redmine in milliseconds, 0 if never fetched.
+         */
+        final long updatedOn;
+
+        final boolean closed;
+
+        TrackedIssue(String siteName, int id, String status, String assignee, long updatedOn, boolean closed) {
+            this.siteName = siteName;
+            this.id = id;
+            this.status = status;
+            this.assignee = assignee;
+            this.updatedOn = updatedOn;
+            this.closed = closed;
+        }
+
+        boolean isFetched() {
+            return updatedOn != 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TrackedIssue)) {
+                return false;
+            }
+            TrackedIssue other = (TrackedIssue) o;
+            return id == other.id && updatedOn == other.updatedOn && closed == other.closed
+                   && siteName.equals(other.siteName)
+                   && (status == null ? other.status == null : status.equals(other.status))
+                   && (assignee == null ? other.assignee == null : assignee.equals(other.assignee));
+        }
+
+        @Override
+        public int hashCode() {
+            return siteName.hashCode() * 31 + id;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RedmineIssueTracker.class.getName());
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.model.AbstractBuild;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Posts to Redmine from scripts, such as Groovy Postbuild steps or the
+ * parallel branches of a Build Flow. The calls never wait for Redmine: the
+ * post is rendered by the caller, but the HTTP work goes through the
+ * {@link RedminePostQueue}. The returned futures complete with the issue
+ * numbers whether or not anybody waits for them.
+ */
+public final class RedmineIssues {
+
+    private RedmineIssues() {
+    }
+
+    /**
+     * Posts the build as configured by the job's Redmine post task,
+     * regardless of the build's result.
+     *
+     * @return the issue number of every target, the task's own site first
+     */
+    public static List<Future<Integer>> post(AbstractBuild<?, ?> build) throws IOException {
+        RedminePostTask task = build.getProject().getPublishersList().get(RedminePostTask.class);
+        if (task == null) {
+            throw new IllegalArgumentException(build.getProject().getFullDisplayName()
+                                               + " has no Redmine post task");
+        }
+        List<Future<Integer>> issues = new ArrayList<Future<Integer>>();
+        for (RedminePost post : task.createPosts(build, true)) {
+            issues.add(RedminePostQueue.get().submit(post));
+        }
+        return issues;
+    }
+
+    /**
+     * Posts a subject and description of the caller's choosing on behalf of
+     * the build.
+     *
+     * @param target site name, or {@code site:project} like the additional
+     *               targets of the post task
+     */
+    public static Future<Integer> post(AbstractBuild<?, ?> build, String target, String subject,
+                                       String description) {
+        String[] siteAndProject = RedminePostTask.parseTarget(target.trim());
+        if (RedmineSite.get(siteAndProject[0]) == null) {
+            throw new IllegalArgumentException("Unknown Redmine site: " + siteAndProject[0]);
+        }
+        RedminePost post = new RedminePost(siteAndProject[0], subject, description, build.getProject().getFullName(),
+                                           build.getNumber(), null, null, 0, siteAndProject[1]);
+        return RedminePostQueue.get().submit(post);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.plugins.redmineposttask.RedmineIssueTracker.TrackedIssue;
+
+/**
+ * Shows the Redmine issues of a job's recent builds on the job page.
+ */
+public final class RedmineIssuesProjectAction implements Action {
+
+    private final AbstractProject<?, ?> project;
+
+    RedmineIssuesProjectAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    /**
+     * Returns the issues the job posted to most recently, newest first. They
+     * come from the {@link RedmineIssueTracker}, no build is loaded.
+     */
+    public List<RedmineIssueAction> getIssues() {
+        List<RedmineIssueAction> issues = new ArrayList<RedmineIssueAction>();
+        for (TrackedIssue issue : RedmineIssueTracker.get().getJobIssues(project.getFullName())) {
+            issues.add(new RedmineIssueAction(issue.siteName, issue.id));
+        }
+        return issues;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Redmine issues";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
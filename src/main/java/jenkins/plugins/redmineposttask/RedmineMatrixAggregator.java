@@ -0,0 +1,154 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.Launcher;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
+import hudson.model.BuildListener;
+import hudson.model.Result;
+import hudson.tasks.junit.TestResultAction;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Posts a single issue for a whole matrix build instead of one per failed
+ * configuration.
+ *
+ * Each configuration is summarized as it finishes, so the runs themselves
+ * are not held on to: one table row per configuration, the failed tests
+ * within the task's size budget, and a short log excerpt of every failed
+ * configuration.
+ */
+final class RedmineMatrixAggregator extends MatrixAggregator {
+
+    // Log excerpt of one failed configuration, and the budget of all excerpts
+    private static final int EXCERPT_LINES = 20;
+    private static final int EXCERPT_BYTES = 4 * 1024;
+    private static final int EXCERPTS_MAX_CHARS = 64 * 1024;
+
+    private final RedminePostTask task;
+
+    private final StringBuilder rows = new StringBuilder();
+
+    private final TestResultRenderer tests;
+
+    private final StringBuilder excerpts = new StringBuilder();
+
+    private int omittedExcerpts;
+
+    /**
+     * Whether the fingerprint will be asked for, which costs a read of every
+     * failed configuration's log.
+     */
+    private final boolean fingerprinting;
+
+    private final List<String> fingerprints = new ArrayList<String>();
+
+    RedmineMatrixAggregator(RedminePostTask task, MatrixBuild build, Launcher launcher,
+                            BuildListener listener) {
+        super(build, launcher, listener);
+        this.task = task;
+        this.tests = task.createResultRenderer();
+        this.fingerprinting = task.needsFingerprint();
+    }
+
+    @Override
+    public boolean endRun(MatrixRun run) throws InterruptedException, IOException {
+        String configuration = run.getParent().getCombination().toString();
+        Result result = run.getResult();
+        int failCount = 0;
+        for (TestResultAction action : run.getActions(TestResultAction.class)) {
+            failCount += action.getFailCount();
+        }
+        rows.append("|\"").append(configuration).append("\":").append(run.getAbsoluteUrl())
+            .append(" |").append(result).append(" |").append(failCount).append(" |\n");
+        if (result == null || result.isBetterOrEqualTo(Result.SUCCESS)) {
+            return true;
+        }
+
+        for (TestResultAction action : run.getActions(TestResultAction.class)) {
+            task.appendResult(tests, configuration + " " + action.getDisplayName(), run.getAbsoluteUrl(),
+                              action);
+        }
+        if (fingerprinting) {
+            try {
+                fingerprints.add(configuration + ":" + FailureFingerprint.of(run));
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+                listener.getLogger().println(ex.toString());
+            }
+        }
+
+        if (excerpts.length() >= EXCERPTS_MAX_CHARS) {
+            omittedExcerpts++;
+            return true;
+        }
+        excerpts.append("h3. ").append(configuration).append("\n\n<pre>\n");
+        for (String line : LogTail.read(run, EXCERPT_LINES, EXCERPT_BYTES)) {
+            excerpts.append(line).append('\n');
+        }
+        excerpts.append("</pre>\n\n");
+        return true;
+    }
+
+    @Override
+    public boolean endBuild() throws InterruptedException, IOException {
+        return task.post(build, listener, this);
+    }
+
+    /**
+     * Per-configuration summary of the matrix, in Textile.
+     */
+    String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append("h2. Configurations\n\n");
+        summary.append("|_. Configuration |_. Result |_. Failed tests |\n");
+        summary.append(rows).append('\n');
+        summary.append(tests);
+        if (excerpts.length() > 0) {
+            summary.append("h2. Failed configurations\n\n").append(excerpts);
+            if (omittedExcerpts > 0) {
+                summary.append("... logs of ").append(omittedExcerpts)
+                       .append(" more failed configurations omitted\n\n");
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Fingerprint of the matrix, built from the fingerprints of its failed
+     * configurations.
+     */
+    String getFingerprint() {
+        return FailureFingerprint.of(fingerprints);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RedmineMatrixAggregator.class.getName());
+}
@@ -0,0 +1,650 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.taskadapter.redmineapi.RedmineException;
+import com.taskadapter.redmineapi.bean.Issue;
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import jenkins.model.Jenkins;
+
+/**
+ * Append-only journal of posts that have not reached Redmine yet.
+ *
+ * Every record is {@code type, length, payload, crc32}. A {@link #POSTED}
+ * record holds a whole {@link RedminePost}; a {@link #DELIVERED} record only
+ * its ticket. Only the tickets of pending posts are kept in memory; payloads
+ * are streamed back from disk when the outbox is replayed. Writes are flushed
+ * to the OS immediately and synced to disk in batches every
+ * {@link #SYNC_INTERVAL} milliseconds. The journal is rewritten without the
+ * delivered entries once enough of them have accumulated.
+ */
+final class RedmineOutbox {
+
+    private static final String PROPERTY_PREFIX = RedmineOutbox.class.getName();
+
+    private static final long SYNC_INTERVAL = Long.getLong(PROPERTY_PREFIX + ".syncInterval", 200);
+
+    private static final int REPLAY_RATE = Integer.getInteger(PROPERTY_PREFIX + ".replayRate", 5);
+
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    private static final byte POSTED = 'P';
+
+    private static final byte DELIVERED = 'D';
+
+    private static final RedmineOutbox INSTANCE = new RedmineOutbox();
+
+    /**
+     * Tickets journaled but not delivered yet.
+     */
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Tickets somebody is currently trying to deliver.
+     */
+    private final Set<String> claimed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicBoolean replaying = new AtomicBoolean();
+
+    /**
+     * Directory of the journal, null for redmine-posttask under JENKINS_HOME.
+     */
+    private final File dir;
+
+    private File file;
+
+    private FileOutputStream out;
+
+    private DataOutputStream data;
+
+    private boolean dirty;
+
+    private int deliveredSinceCompaction;
+
+    private boolean compacting;
+
+    /**
+     * Held while compacting, so two compactions never share the temporary file.
+     */
+    private final Object compaction = new Object();
+
+    /**
+     * Whether the pending tickets were recovered from the journal.
+     */
+    private boolean recovered;
+
+    private ScheduledExecutorService syncer;
+
+    private RedmineOutbox() {
+        this(null);
+    }
+
+    RedmineOutbox(File dir) {
+        this.dir = dir;
+    }
+
+    static RedmineOutbox get() {
+        return INSTANCE;
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    boolean isPending(String ticket) {
+        return pending.contains(ticket);
+    }
+
+    /**
+     * Journals the post so it survives a restart, unless it is pending
+     * already. Returns false if it could not be written.
+     */
+    boolean add(RedminePost post) {
+        if (pending.contains(post.ticket)) {
+            return true;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256 + post.description.length());
+        try {
+            writePost(new DataOutputStream(buffer), post);
+            synchronized (this) {
+                open();
+                writeRecord(POSTED, buffer.toByteArray());
+                pending.add(post.ticket);
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to journal Redmine post " + post, e);
+            return false;
+        }
+    }
+
+    /**
+     * Marks the post as delivered, or as given up on.
+     */
+    void delivered(String ticket) {
+        if (!pending.remove(ticket)) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                open();
+                writeRecord(DELIVERED, ticket.getBytes("UTF-8"));
+                deliveredSinceCompaction++;
+                if (!compacting && deliveredSinceCompaction >= COMPACTION_THRESHOLD
+                        && deliveredSinceCompaction > pending.size()) {
+                    // off the caller's thread, which is usually a build or a dispatcher
+                    compacting = true;
+                    syncer.execute(new Runnable() {
+                        public void run() {
+                            compact();
+                        }
+                    });
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to journal delivery of Redmine ticket " + ticket, e);
+        }
+    }
+
+    /**
+     * Reserves the ticket for delivery so the replay does not post it twice.
+     */
+    boolean claim(String ticket) {
+        return claimed.add(ticket);
+    }
+
+    void unclaim(String ticket) {
+        claimed.remove(ticket);
+    }
+
+    /**
+     * Opens the journal unless it is open already.
+     */
+    synchronized void start() throws IOException {
+        open();
+    }
+
+    /**
+     * Opens the journal. The first time, it also recovers the pending tickets
+     * and cuts off a torn record left behind by a crash. A crash in the
+     * middle of a compaction leaves either the old journal, whole, or only
+     * the compacted one.
+     *
+     * Reopening after a compaction must not recover again: {@link #delivered}
+     * drops the ticket from {@link #pending} before it journals the delivery,
+     * and a recovery in between would bring the ticket back.
+     */
+    private void open() throws IOException {
+        if (data != null) {
+            return;
+        }
+        File dir = this.dir != null
+                   ? this.dir : new File(Jenkins.getInstance().getRootDir(), "redmine-posttask");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        File journal = new File(dir, "outbox.journal");
+        File compacted = new File(dir, "outbox.journal.tmp");
+        if (compacted.exists()) {
+            if (journal.exists()) {
+                // unfinished, the old journal is still whole
+                if (!compacted.delete()) {
+                    throw new IOException("Failed to delete " + compacted);
+                }
+            } else if (!compacted.renameTo(journal)) {
+                throw new IOException("Failed to recover " + journal + " from " + compacted);
+            }
+        }
+        file = journal;
+        if (!recovered) {
+            if (file.exists()) {
+                long valid = recover();
+                if (valid < file.length()) {
+                    LOGGER.log(Level.WARNING, "Truncating corrupt tail of {0} at offset {1}",
+                               new Object[] {file, valid});
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    try {
+                        raf.setLength(valid);
+                    } finally {
+                        raf.close();
+                    }
+                }
+            }
+            recovered = true;
+        }
+        out = new FileOutputStream(file, true);
+        data = new DataOutputStream(new BufferedOutputStream(out));
+        if (syncer == null) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("RedmineOutbox.sync"));
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sync();
+                }
+            }, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private long recover() throws IOException {
+        JournalReader reader = new JournalReader(file);
+        try {
+            while (reader.next()) {
+                if (reader.type == POSTED) {
+                    pending.add(readTicket(reader.payload));
+                } else {
+                    pending.remove(new String(reader.payload, "UTF-8"));
+                }
+            }
+            return reader.validLength;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void writeRecord(byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        data.writeByte(type);
+        data.writeInt(payload.length);
+        data.write(payload);
+        data.writeLong(crc.getValue());
+        data.flush();
+        dirty = true;
+    }
+
+    private synchronized void sync() {
+        if (!dirty || out == null) {
+            return;
+        }
+        try {
+            out.getChannel().force(false);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to sync " + file, e);
+        }
+    }
+
+    /**
+     * Rewrites the journal keeping only the posts still pending.
+     *
+     * The bulk of the journal is copied without holding the lock, so builds
+     * keep adding posts meanwhile. Only the records appended in between are
+     * copied under the lock, right before the compacted journal is renamed
+     * over the old one. The pending tickets are not recovered again after the
+     * swap, {@link #pending} stays the authority.
+     */
+    void compact() {
+        synchronized (compaction) {
+            File journal = null;
+            File compacted = null;
+            try {
+                long end;
+                synchronized (this) {
+                    open();
+                    data.flush();
+                    journal = file;
+                    end = out.getChannel().size();
+                }
+                compacted = new File(journal.getPath() + ".tmp");
+                FileOutputStream compactedOut = new FileOutputStream(compacted);
+                DataOutputStream compactedData = new DataOutputStream(new BufferedOutputStream(compactedOut));
+                try {
+                    JournalReader reader = new JournalReader(journal);
+                    try {
+                        while (reader.validLength < end && reader.next()) {
+                            if (reader.type == POSTED && pending.contains(readTicket(reader.payload))) {
+                                compactedData.writeByte(reader.type);
+                                compactedData.writeInt(reader.payload.length);
+                                compactedData.write(reader.payload);
+                                compactedData.writeLong(reader.crc);
+                            }
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                    synchronized (this) {
+                        data.flush();
+                        copyFrom(journal, end, compactedData);
+                        compactedData.flush();
+                        compactedOut.getChannel().force(false);
+                        compactedData.close();
+                        data.close();
+                        data = null;
+                        out = null;
+                        replace(compacted, journal);
+                        deliveredSinceCompaction = 0;
+                        open();
+                    }
+                } finally {
+                    compactedData.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to compact " + journal, e);
+                // without the old journal the compacted one is all there is, open() takes it from here
+                if (compacted != null && journal.exists()) {
+                    compacted.delete();
+                }
+            } finally {
+                synchronized (this) {
+                    compacting = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the journal from the given offset to its end.
+     */
+    private static void copyFrom(File journal, long offset, DataOutputStream to) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(journal, "r");
+        try {
+            raf.seek(offset);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = raf.read(buffer)) > 0) {
+                to.write(buffer, 0, n);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Renames the compacted journal over the old one, which is atomic on
+     * POSIX. Where a rename cannot replace a file, the old journal is
+     * deleted first and {@link #open()} completes the rename after a crash.
+     */
+    private static void replace(File compacted, File journal) throws IOException {
+        if (compacted.renameTo(journal)) {
+            return;
+        }
+        if (!journal.delete() || !compacted.renameTo(journal)) {
+            throw new IOException("Failed to replace " + journal + " with " + compacted);
+        }
+    }
+
+    /**
+     * Streams the journal and posts every pending entry nobody else is
+     * working on, at most {@link #REPLAY_RATE} per second. Stops early when
+     * Redmine looks unavailable; the next replay picks up from there.
+     */
+    void replay() {
+        if (pending.isEmpty() || !replaying.compareAndSet(false, true)) {
+            return;
+        }
+        int delivered = 0;
+        try {
+            File journal;
+            synchronized (this) {
+                open();
+                data.flush();
+                journal = file;
+            }
+            JournalReader reader = new JournalReader(journal);
+            try {
+                while (reader.next()) {
+                    if (reader.type != POSTED) {
+                        continue;
+                    }
+                    String ticket = readTicket(reader.payload);
+                    if (!isPending(ticket) || !claim(ticket)) {
+                        continue;
+                    }
+                    try {
+                        if (!redeliver(readPost(reader.payload))) {
+                            break;
+                        }
+                        delivered++;
+                    } finally {
+                        unclaim(ticket);
+                    }
+                    Thread.sleep(1000L / Math.max(REPLAY_RATE, 1));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to replay Redmine outbox", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            replaying.set(false);
+        }
+        if (delivered > 0) {
+            LOGGER.log(Level.INFO, "Replayed {0} Redmine post(s) from the outbox, {1} still pending",
+                       new Object[] {delivered, pending.size()});
+        }
+    }
+
+    /**
+     * Returns false if the post should be tried again later.
+     */
+    private boolean redeliver(RedminePost post) {
+        RedmineSite site = RedmineSite.get(post.siteName);
+        if (site == null) {
+            LOGGER.log(Level.WARNING, "Dropping Redmine post {0}: site {1} no longer exists",
+                       new Object[] {post, post.siteName});
+            delivered(post.ticket);
+            return true;
+        }
+        try {
+            Issue issue = RedmineIssuePoster.post(site, post);
+            delivered(post.ticket);
+            LOGGER.log(Level.INFO, "Redmine ticket {0} resolved to issue #{1}",
+                       new Object[] {post, issue.getId()});
+            return true;
+        } catch (RedmineException ex) {
+            if (RedmineIssuePoster.isRetryable(ex)) {
+                LOGGER.log(Level.FINE, "Redmine still unavailable, keeping " + post, ex);
+                return false;
+            }
+            LOGGER.log(Level.SEVERE, "Dropping Redmine post " + post, ex);
+            delivered(post.ticket);
+            return true;
+        }
+    }
+
+    static void writePost(DataOutputStream out, RedminePost post) throws IOException {
+        writeString(out, post.ticket);
+        writeString(out, post.siteName);
+        writeString(out, post.subject);
+        writeString(out, post.description);
+        writeString(out, post.jobName);
+        out.writeInt(post.buildNumber);
+        out.writeBoolean(post.fingerprint != null);
+        if (post.fingerprint != null) {
+            writeString(out, post.fingerprint);
+        }
+        out.writeBoolean(post.logFile != null);
+        if (post.logFile != null) {
+            writeString(out, post.logFile);
+            out.writeLong(post.logMaxBytes);
+        }
+        out.writeBoolean(post.projectKey != null);
+        if (post.projectKey != null) {
+            writeString(out, post.projectKey);
+        }
+    }
+
+    static RedminePost readPost(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String ticket = readString(in);
+        String siteName = readString(in);
+        String subject = readString(in);
+        String description = readString(in);
+        String jobName = readString(in);
+        int buildNumber = in.readInt();
+        String fingerprint = in.readBoolean() ? readString(in) : null;
+        String logFile = null;
+        long logMaxBytes = 0;
+        // records journaled before log attachments end here
+        if (in.available() > 0 && in.readBoolean()) {
+            logFile = readString(in);
+            logMaxBytes = in.readLong();
+        }
+        // and those journaled before project overrides here
+        String projectKey = in.available() > 0 && in.readBoolean() ? readString(in) : null;
+        return new RedminePost(ticket, siteName, subject, description, jobName, buildNumber, fingerprint,
+                               logFile, logMaxBytes, projectKey);
+    }
+
+    private static String readTicket(byte[] payload) throws IOException {
+        return readString(new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Reads the journal one record at a time, stopping at the first record
+     * that is truncated or fails its checksum.
+     */
+    private static final class JournalReader {
+
+        private final DataInputStream in;
+
+        byte type;
+
+        byte[] payload;
+
+        long crc;
+
+        /**
+         * Length of the journal up to the end of the last valid record.
+         */
+        long validLength;
+
+        JournalReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        boolean next() throws IOException {
+            try {
+                byte t = in.readByte();
+                int length = in.readInt();
+                if ((t != POSTED && t != DELIVERED) || length < 0 || length > MAX_RECORD_LENGTH) {
+                    return false;
+                }
+                byte[] p = new byte[length];
+                in.readFully(p);
+                long c = in.readLong();
+                CRC32 check = new CRC32();
+                check.update(t);
+                check.update(p);
+                if (check.getValue() != c) {
+                    return false;
+                }
+                type = t;
+                payload = p;
+                crc = c;
+                validLength += 1 + 4 + length + 8;
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void replayOnStartup() {
+        try {
+            INSTANCE.start();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to open Redmine outbox", e);
+            return;
+        }
+        if (INSTANCE.getPendingCount() > 0) {
+            new NamedThreadFactory("RedmineOutbox.replay").newThread(new Runnable() {
+                public void run() {
+                    INSTANCE.replay();
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * Periodically retries posts that could not be delivered earlier.
+     */
+    @Extension
+    public static final class Replayer extends AsyncPeriodicWork {
+
+        public Replayer() {
+            super("Redmine outbox replay");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return 5 * MIN;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) {
+            INSTANCE.replay();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RedmineOutbox.class.getName());
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A rendered issue waiting to be created on a Redmine site.
+ *
+ * Instances are immutable so they can be handed between the build thread
+ * and the dispatcher threads of {@link RedminePostQueue}.
+ */
+final class RedminePost {
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static final String TICKET_PREFIX = Long.toString(System.currentTimeMillis(), 36);
+
+    /**
+     * Identifies the post in build logs until it resolves to a Redmine issue number.
+     */
+    final String ticket;
+
+    final String siteName;
+
+    final String subject;
+
+    final String description;
+
+    /**
+     * Full name of the job that produced the post.
+     */
+    final String jobName;
+
+    final int buildNumber;
+
+    /**
+     * {@link FailureFingerprint} of the build when recurring failures should
+     * update the existing issue, null to always create a new one.
+     */
+    final String fingerprint;
+
+    /**
+     * Path of the console log to attach, null to attach nothing.
+     */
+    final String logFile;
+
+    /**
+     * Limit of the attached log, see {@link LogAttachment}.
+     */
+    final long logMaxBytes;
+
+    /**
+     * Identifier of the project to post to, null for the project of the site.
+     */
+    final String projectKey;
+
+    RedminePost(String siteName, String subject, String description, String jobName, int buildNumber,
+                String fingerprint, String logFile, long logMaxBytes, String projectKey) {
+        this(TICKET_PREFIX + "-" + SEQUENCE.incrementAndGet(), siteName, subject, description,
+             jobName, buildNumber, fingerprint, logFile, logMaxBytes, projectKey);
+    }
+
+    RedminePost(String ticket, String siteName, String subject, String description,
+                String jobName, int buildNumber, String fingerprint, String logFile, long logMaxBytes,
+                String projectKey) {
+        this.ticket = ticket;
+        this.siteName = siteName;
+        this.subject = subject;
+        this.description = description;
+        this.jobName = jobName;
+        this.buildNumber = buildNumber;
+        this.fingerprint = fingerprint;
+        this.logFile = logFile;
+        this.logMaxBytes = logMaxBytes;
+        this.projectKey = projectKey;
+    }
+
+    /**
+     * The site, and the project when it is not the site's own.
+     */
+    String getTarget() {
+        return projectKey == null ? siteName : siteName + "/" + projectKey;
+    }
+
+    @Override
+    public String toString() {
+        return ticket + " (" + jobName + " #" + buildNumber + ")";
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.taskadapter.redmineapi.RedmineException;
+import com.taskadapter.redmineapi.bean.Issue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds posts back for the coalescing window of their site and merges those
+ * reporting the same failure into a single issue with a summary table.
+ *
+ * When a shared dependency breaks, many jobs fail within seconds of each
+ * other; this turns N issues into one. Held posts stay journaled in the
+ * {@link RedmineOutbox} until the merged post is journaled in their place.
+ */
+final class RedminePostCoalescer {
+
+    /**
+     * Rows listed in the summary table of a merged issue.
+     */
+    private static final int MAX_ROWS = 200;
+
+    private static final RedminePostCoalescer INSTANCE = new RedminePostCoalescer();
+
+    private final Map<String, Group> groups = new HashMap<String, Group>();
+
+    private final AtomicLong merged = new AtomicLong();
+
+    private final AtomicLong issues = new AtomicLong();
+
+    private ScheduledExecutorService timer;
+
+    private RedminePostCoalescer() {
+    }
+
+    static RedminePostCoalescer get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Posts folded into another post's issue so far.
+     */
+    long getMergedPostCount() {
+        return merged.get();
+    }
+
+    /**
+     * Issues created from two or more posts so far.
+     */
+    long getCoalescedIssueCount() {
+        return issues.get();
+    }
+
+    /**
+     * Holds the post until the site's coalescing window closes.
+     *
+     * @param groupFingerprint {@link FailureFingerprint} the post is grouped by
+     */
+    void add(RedmineSite site, RedminePost post, String groupFingerprint) {
+        RedmineOutbox outbox = RedmineOutbox.get();
+        outbox.claim(post.ticket);
+        outbox.add(post);
+
+        String projectKey = post.projectKey != null ? post.projectKey : site.projectId;
+        final String key = site.name + "\n" + projectKey + "\n" + groupFingerprint;
+        synchronized (this) {
+            Group group = groups.get(key);
+            if (group == null) {
+                group = new Group();
+                groups.put(key, group);
+                if (timer == null) {
+                    timer = Executors.newSingleThreadScheduledExecutor(
+                            new NamedThreadFactory("RedminePostCoalescer.timer"));
+                }
+                timer.schedule(new Runnable() {
+                    public void run() {
+                        flush(key);
+                    }
+                }, site.getCoalesceWindow(), TimeUnit.SECONDS);
+            }
+            group.add(post);
+        }
+    }
+
+    private void flush(String key) {
+        Group group;
+        synchronized (this) {
+            group = groups.remove(key);
+        }
+        if (group == null) {
+            return;
+        }
+        RedminePost post = group.first;
+        if (group.tickets.size() > 1) {
+            post = group.merge();
+            merged.addAndGet(group.tickets.size() - 1);
+            issues.incrementAndGet();
+            // the merged post is journaled on its own before the posts it replaces are let go
+            RedmineOutbox outbox = RedmineOutbox.get();
+            outbox.claim(post.ticket);
+            outbox.add(post);
+            for (String ticket : group.tickets) {
+                outbox.delivered(ticket);
+                outbox.unclaim(ticket);
+            }
+        }
+        if (!RedminePostQueue.get().offer(post)) {
+            // the queue is full, post from the timer thread instead
+            postNow(post);
+        }
+    }
+
+    /**
+     * Posts a journaled and claimed post right away and settles it in the
+     * outbox the way the queue would: delivered or dropped posts are marked
+     * delivered, the others are left to the outbox replay.
+     */
+    static void postNow(RedminePost post) {
+        RedmineOutbox outbox = RedmineOutbox.get();
+        boolean done = false;
+        try {
+            RedmineSite site = RedmineSite.get(post.siteName);
+            if (site == null) {
+                LOGGER.log(Level.WARNING, "Dropping Redmine post {0}: site {1} no longer exists",
+                           new Object[] {post, post.siteName});
+                done = true;
+                return;
+            }
+            try {
+                Issue issue = RedmineIssuePoster.post(site, post);
+                done = true;
+                LOGGER.log(Level.INFO, "Redmine ticket {0} resolved to issue #{1}",
+                           new Object[] {post, issue.getId()});
+            } catch (RedmineException ex) {
+                if (RedmineIssuePoster.isRetryable(ex)) {
+                    LOGGER.log(Level.WARNING, "Failed to post coalesced Redmine ticket " + post
+                               + ", leaving it in the outbox", ex);
+                } else {
+                    LOGGER.log(Level.SEVERE, "Dropping Redmine post " + post, ex);
+                    done = true;
+                }
+            }
+        } finally {
+            if (done) {
+                outbox.delivered(post.ticket);
+            }
+            outbox.unclaim(post.ticket);
+        }
+    }
+
+    /**
+     * Posts held for one failure. Only the first post is kept whole, the
+     * others are reduced to a row of the summary table.
+     */
+    private static final class Group {
+
+        RedminePost first;
+
+        final List<String> tickets = new ArrayList<String>();
+
+        final StringBuilder rows = new StringBuilder();
+
+        void add(RedminePost post) {
+            if (first == null) {
+                first = post;
+            }
+            tickets.add(post.ticket);
+            if (tickets.size() <= MAX_ROWS) {
+                rows.append("| ").append(post.jobName)
+                    .append(" | #").append(post.buildNumber)
+                    .append(" | ").append(post.subject).append(" |\n");
+            }
+        }
+
+        /**
+         * Builds one post listing every build of the group, followed by the
+         * description of the first one.
+         */
+        RedminePost merge() {
+            int count = tickets.size();
+            StringBuilder description = new StringBuilder();
+            description.append("h2. ").append(count).append(" builds failed the same way\n\n");
+            description.append("|_. Job |_. Build |_. Subject |\n");
+            description.append(rows);
+            if (count > MAX_ROWS) {
+                description.append("\n... and ").append(count - MAX_ROWS).append(" more\n");
+            }
+            description.append("\nh2. ").append(first.jobName).append(" #").append(first.buildNumber)
+                       .append("\n\n").append(first.description);
+
+            // a merged issue spans several jobs, so it is not tracked for deduplication
+            return new RedminePost(first.siteName, count + " builds failed: " + first.subject,
+                                   description.toString(), first.jobName, first.buildNumber, null,
+                                   first.logFile, first.logMaxBytes, first.projectKey);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RedminePostCoalescer.class.getName());
+}
@@ -0,0 +1,290 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.taskadapter.redmineapi.RedmineException;
+import com.taskadapter.redmineapi.bean.Issue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded in-process queue that creates Redmine issues off the executor thread.
+ *
+ * A small pool of dispatcher threads drains the queue. Each site gets at
+ * most {@link #SITE_CONCURRENCY} posts in flight; failed posts are retried
+ * with exponential backoff up to {@link #MAX_ATTEMPTS} times. Posts waiting
+ * for a retry count against {@link #CAPACITY} like queued ones.
+ */
+final class RedminePostQueue {
+
+    private static final String PROPERTY_PREFIX = RedminePostQueue.class.getName();
+
+    private static final int CAPACITY = Integer.getInteger(PROPERTY_PREFIX + ".capacity", 1000);
+
+    private static final int DISPATCHERS = Integer.getInteger(PROPERTY_PREFIX + ".dispatchers", 4);
+
+    private static final int SITE_CONCURRENCY = Integer.getInteger(PROPERTY_PREFIX + ".siteConcurrency", 2);
+
+    private static final int MAX_ATTEMPTS = Integer.getInteger(PROPERTY_PREFIX + ".maxAttempts", 5);
+
+    private static final long RETRY_BASE_DELAY = TimeUnit.SECONDS.toMillis(2);
+
+    private static final long RETRY_MAX_DELAY = TimeUnit.MINUTES.toMillis(5);
+
+    private static final long SITE_BUSY_DELAY = 200;
+
+    private static final RedminePostQueue INSTANCE = new RedminePostQueue();
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(CAPACITY);
+
+    /**
+     * One permit per entry, whether it waits in the queue, is being
+     * delivered or waits for a retry, so an outage cannot pile up posts
+     * beyond {@link #CAPACITY}.
+     */
+    private final Semaphore slots = new Semaphore(CAPACITY);
+
+    private final ConcurrentMap<String, Semaphore> sitePermits = new ConcurrentHashMap<String, Semaphore>();
+
+    private ScheduledExecutorService timer;
+
+    private RedminePostQueue() {
+    }
+
+    static RedminePostQueue get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues the post. Returns false when the queue is full and the caller
+     * has to post on its own.
+     */
+    boolean offer(RedminePost post) {
+        return offer(post, null);
+    }
+
+    /**
+     * Queues the post without ever blocking the caller. When the queue is
+     * full the post is left to the outbox replay and the result fails right
+     * away.
+     */
+    RedmineIssueFuture submit(RedminePost post) {
+        RedmineIssueFuture future = new RedmineIssueFuture();
+        if (!offer(post, future)) {
+            RedmineOutbox.get().add(post);
+            future.fail(new SiteUnavailableException("Redmine post queue is full, ticket " + post.ticket
+                                                     + " left in the outbox"));
+        }
+        return future;
+    }
+
+    private boolean offer(RedminePost post, RedmineIssueFuture future) {
+        if (!slots.tryAcquire()) {
+            return false;
+        }
+        start();
+        RedmineOutbox outbox = RedmineOutbox.get();
+        outbox.claim(post.ticket);
+        // journaled first so that a restart does not lose it
+        outbox.add(post);
+        // cannot fail, every entry holds a slot
+        queue.add(new Entry(post, future));
+        SiteMetrics.get(post.siteName).queued();
+        return true;
+    }
+
+    /**
+     * Returns the number of posts waiting, being delivered or waiting for a retry.
+     */
+    int size() {
+        return CAPACITY - slots.availablePermits();
+    }
+
+    private synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("RedminePostQueue.timer"));
+        ThreadFactory dispatcherFactory = new NamedThreadFactory("RedminePostQueue.dispatcher");
+        for (int i = 0; i < DISPATCHERS; i++) {
+            dispatcherFactory.newThread(new Runnable() {
+                public void run() {
+                    dispatchLoop();
+                }
+            }).start();
+        }
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                dispatch(entry);
+            } catch (RuntimeException e) {
+                // still journaled, the outbox replay takes over from here
+                LOGGER.log(Level.WARNING, "Failed to dispatch Redmine post " + entry.post, e);
+                RedmineOutbox.get().unclaim(entry.post.ticket);
+                entry.fail(new RedmineException("Failed to dispatch, ticket " + entry.post.ticket
+                                                + " left in the outbox", e));
+                SiteMetrics.get(entry.post.siteName).dequeued();
+                slots.release();
+            }
+        }
+    }
+
+    private void dispatch(Entry entry) {
+        Semaphore permits = getPermits(entry.post.siteName);
+        if (!permits.tryAcquire()) {
+            // the site is saturated, let the other sites go first
+            schedule(entry, SITE_BUSY_DELAY);
+            return;
+        }
+        boolean done = false;
+        try {
+            done = deliver(entry);
+        } finally {
+            permits.release();
+            if (done) {
+                SiteMetrics.get(entry.post.siteName).dequeued();
+                slots.release();
+            }
+        }
+    }
+
+    /**
+     * Returns true when the entry leaves the queue for good, false when it
+     * is scheduled for another attempt.
+     */
+    private boolean deliver(Entry entry) {
+        RedminePost post = entry.post;
+        RedmineOutbox outbox = RedmineOutbox.get();
+        RedmineSite site = RedmineSite.get(post.siteName);
+        if (site == null) {
+            LOGGER.log(Level.WARNING, "Dropping Redmine post {0}: site {1} no longer exists",
+                       new Object[] {post, post.siteName});
+            outbox.delivered(post.ticket);
+            outbox.unclaim(post.ticket);
+            entry.fail(new RedmineException("Redmine site " + post.siteName + " no longer exists"));
+            return true;
+        }
+        entry.attempts++;
+        try {
+            Issue issue = RedmineIssuePoster.post(site, post);
+            outbox.delivered(post.ticket);
+            outbox.unclaim(post.ticket);
+            entry.resolve(issue.getId());
+            LOGGER.log(Level.INFO, "Redmine ticket {0} resolved to issue #{1}",
+                       new Object[] {post, issue.getId()});
+            return true;
+        } catch (RedmineException ex) {
+            if (!RedmineIssuePoster.isRetryable(ex)) {
+                LOGGER.log(Level.SEVERE, "Dropping Redmine post " + post, ex);
+                outbox.delivered(post.ticket);
+                outbox.unclaim(post.ticket);
+                entry.fail(ex);
+                return true;
+            }
+            if (entry.attempts >= MAX_ATTEMPTS) {
+                // still journaled, the outbox replay takes over from here
+                LOGGER.log(Level.SEVERE, "Giving up on Redmine post " + post + " after "
+                           + entry.attempts + " attempt(s), leaving it in the outbox", ex);
+                outbox.unclaim(post.ticket);
+                entry.fail(ex);
+                return true;
+            }
+            long delay = Math.min(RETRY_BASE_DELAY << (entry.attempts - 1), RETRY_MAX_DELAY);
+            LOGGER.log(Level.WARNING, "Redmine post {0} failed ({1}), retrying in {2} ms",
+                       new Object[] {post, ex, delay});
+            schedule(entry, delay);
+            return false;
+        }
+    }
+
+    private void schedule(final Entry entry, long delay) {
+        timer.schedule(new Runnable() {
+            public void run() {
+                // the entry kept its slot, so there is room for it
+                queue.add(entry);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private Semaphore getPermits(String siteName) {
+        Semaphore permits = sitePermits.get(siteName);
+        if (permits == null) {
+            Semaphore created = new Semaphore(SITE_CONCURRENCY);
+            permits = sitePermits.putIfAbsent(siteName, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+
+    private static final class Entry {
+
+        final RedminePost post;
+
+        /**
+         * Result of the post, null if nobody asked for it.
+         */
+        final RedmineIssueFuture future;
+
+        int attempts;
+
+        Entry(RedminePost post, RedmineIssueFuture future) {
+            this.post = post;
+            this.future = future;
+        }
+
+        void resolve(int issueId) {
+            if (future != null) {
+                future.set(issueId);
+            }
+        }
+
+        void fail(RedmineException ex) {
+            if (future != null) {
+                future.fail(ex);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RedminePostQueue.class.getName());
+}
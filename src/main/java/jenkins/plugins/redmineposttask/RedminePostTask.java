@@ -24,20 +24,17 @@
 
 package jenkins.plugins.redmineposttask;
 
-import com.taskadapter.redmineapi.ProjectManager;
-import com.taskadapter.redmineapi.bean.Project;
 import com.taskadapter.redmineapi.RedmineException;
-import com.taskadapter.redmineapi.RedmineManager;
-import com.taskadapter.redmineapi.RedmineManagerFactory;
-import com.taskadapter.redmineapi.IssueManager;
 import com.taskadapter.redmineapi.bean.Issue;
-import com.taskadapter.redmineapi.bean.IssueFactory;
-import com.taskadapter.redmineapi.UserManager;
-import com.taskadapter.redmineapi.bean.User;
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.matrix.MatrixAggregatable;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.Result;
 import hudson.tasks.BuildStepDescriptor;
@@ -45,15 +42,28 @@ import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
 import hudson.tasks.junit.TestResultAction;
-import hudson.tasks.junit.CaseResult;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.kohsuke.stapler.DataBoundConstructor;
 
-public class RedminePostTask extends Recorder {
+public class RedminePostTask extends Recorder implements MatrixAggregatable {
 
     private static final String gLineSeparetor;
 
@@ -61,10 +71,49 @@ public class RedminePostTask extends Recorder {
     public final String subject;
     public final String description;
     public final boolean alwaysTriggered;
+    public final boolean asyncPost;
+    public final boolean deduplicate;
+    public final int logMaxLines;
+    public final int logMaxBytes;
+    public final boolean attachLog;
+    public final int attachLogMaxBytes;
+    public final boolean incrementalResults;
+    public final boolean extractErrors;
+    public final String errorMarkers;
+    public final String additionalTargets;
+    public final int targetTimeout;
     
-    // The maximum number of log lines
-    private final int LOG_MAX_LINES = 500;
-    private String mAbsoluteUrl;
+    // The maximum number of log lines and bytes
+    private static final int DEFAULT_LOG_MAX_LINES = 500;
+    private static final int DEFAULT_LOG_MAX_BYTES = 256 * 1024;
+
+    // Log lines kept in the description when the full log is attached, and the attachment limit
+    private static final int ATTACHED_LOG_EXCERPT_LINES = 30;
+    private static final int DEFAULT_ATTACH_LOG_MAX_BYTES = 32 * 1024 * 1024;
+
+    // Seconds the build waits for each target when posting to several
+    private static final int DEFAULT_TARGET_TIMEOUT = 60;
+
+    // Posts to the additional targets run here, so that they do not wait for each other
+    private static final int FAN_OUT_THREADS = Integer.getInteger(
+            RedminePostTask.class.getName() + ".fanOutThreads", 8);
+    private static final ExecutorService FAN_OUT = Executors.newFixedThreadPool(
+            Math.max(FAN_OUT_THREADS, 1), new NamedThreadFactory("RedminePostTask.fanOut"));
+
+    // Lines of context kept before and after each line matching an error marker
+    private static final int ERROR_CONTEXT_LINES = Integer.getInteger(
+            RedminePostTask.class.getName() + ".errorContextLines", 5);
+
+    // Size budget of the failed test summary and of a single test's error details
+    private static final int RESULTS_MAX_CHARS = Integer.getInteger(
+            RedminePostTask.class.getName() + ".resultsMaxChars", 64 * 1024);
+    private static final int RESULT_DETAIL_MAX_CHARS = Integer.getInteger(
+            RedminePostTask.class.getName() + ".resultDetailMaxChars", 4 * 1024);
+
+    // subject and description compiled on first use
+    private transient volatile PostTemplate subjectTemplate;
+    private transient volatile PostTemplate descriptionTemplate;
+    private transient volatile MarkerMatcher errorMatcher;
 
     static {
         gLineSeparetor = System.getProperty("line.separator");
@@ -72,16 +121,39 @@ public class RedminePostTask extends Recorder {
     
     @DataBoundConstructor
     @SuppressWarnings("unused")
-    public RedminePostTask(String siteName, String subject, String description, boolean alwaysTriggered) {
+    public RedminePostTask(String siteName, String subject, String description, boolean alwaysTriggered,
+                           boolean asyncPost, boolean deduplicate, int logMaxLines, int logMaxBytes,
+                           boolean attachLog, int attachLogMaxBytes, boolean incrementalResults,
+                           boolean extractErrors, String errorMarkers, String additionalTargets,
+                           int targetTimeout) {
         this.siteName = siteName;
         this.subject = subject;
         this.description = description;
         this.alwaysTriggered = alwaysTriggered;
+        this.asyncPost = asyncPost;
+        this.deduplicate = deduplicate;
+        this.logMaxLines = logMaxLines;
+        this.logMaxBytes = logMaxBytes;
+        this.attachLog = attachLog;
+        this.attachLogMaxBytes = attachLogMaxBytes;
+        this.incrementalResults = incrementalResults;
+        this.extractErrors = extractErrors;
+        this.errorMarkers = errorMarkers;
+        this.additionalTargets = additionalTargets;
+        this.targetTimeout = targetTimeout;
     }
     
     public BuildStepMonitor getRequiredMonitorService() {
         return BuildStepMonitor.NONE;
     }
+
+    @Override
+    public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
+        List<Action> actions = new ArrayList<Action>();
+        actions.add(new RedmineIssuesProjectAction(project));
+        actions.add(new RedmineBackfillAction(project, this));
+        return actions;
+    }
     
     @SuppressWarnings("unused")
     public String getSiteName() {
@@ -102,90 +174,387 @@ public class RedminePostTask extends Recorder {
     public boolean getAlwaysPost() {
         return alwaysTriggered;
     }
+
+    @SuppressWarnings("unused")
+    public boolean getAsyncPost() {
+        return asyncPost;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean getDeduplicate() {
+        return deduplicate;
+    }
+
+    public int getLogMaxLines() {
+        // 0 for configurations saved before this was a setting
+        return logMaxLines > 0 ? logMaxLines : DEFAULT_LOG_MAX_LINES;
+    }
+
+    public int getLogMaxBytes() {
+        return logMaxBytes > 0 ? logMaxBytes : DEFAULT_LOG_MAX_BYTES;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean getAttachLog() {
+        return attachLog;
+    }
+
+    public int getAttachLogMaxBytes() {
+        return attachLogMaxBytes > 0 ? attachLogMaxBytes : DEFAULT_ATTACH_LOG_MAX_BYTES;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean getIncrementalResults() {
+        return incrementalResults;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean getExtractErrors() {
+        return extractErrors;
+    }
+
+    @SuppressWarnings("unused")
+    public String getAdditionalTargets() {
+        return additionalTargets;
+    }
+
+    public int getTargetTimeout() {
+        return targetTimeout > 0 ? targetTimeout : DEFAULT_TARGET_TIMEOUT;
+    }
+
+    public String getErrorMarkers() {
+        return errorMarkers == null || errorMarkers.trim().length() == 0
+               ? ErrorRegions.DEFAULT_MARKERS : errorMarkers;
+    }
     
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) 
                 throws InterruptedException, IOException {
-        
+        if (build instanceof MatrixRun || build instanceof MatrixBuild) {
+            // a matrix posts once for all its configurations, see RedmineMatrixAggregator
+            return true;
+        }
+        return post(build, listener, null);
+    }
+
+    public MatrixAggregator createAggregator(MatrixBuild build, Launcher launcher, BuildListener listener) {
+        return new RedmineMatrixAggregator(this, build, launcher, listener);
+    }
+
+    /**
+     * @param matrix the configurations of a matrix build, null for other builds
+     */
+    boolean post(AbstractBuild<?, ?> build, BuildListener listener, RedmineMatrixAggregator matrix) {
         Result result = build.getResult();
+        if (deduplicate && result.isBetterOrEqualTo(Result.SUCCESS)) {
+            // the failure streak is over, the next failure deserves a new issue
+            RedmineIssueIndex.get().forgetJob(build.getProject().getFullName());
+        }
         // return if build success & perform when onBuildFailure
         if( !alwaysTriggered ) {
             if( result.isBetterOrEqualTo(Result.SUCCESS) ) {
                 return true;
             }
         }
-        boolean isSuccess = postTaskToRedmine(build, listener);
+        boolean isSuccess = postTaskToRedmine(build, listener, matrix);
 
         return isSuccess;
     }
     
-    private void tryPostTaskToRedmine(RedmineSite site, String redmineSubject,
-                                      String redmineDescription) throws RedmineException {
-        String redmineHost = site.url.toString();
-        String apiAccessKey = site.apiAccessKey;
-        String projectKey = site.projectId;
+    private boolean postTaskToRedmine(AbstractBuild<?, ?> build, BuildListener listener,
+                                      RedmineMatrixAggregator matrix) {
+        RedmineSite site = RedmineSite.get(siteName);
+        if (site == null) {
+            listener.getLogger().println("Unknown Redmine site: " + siteName);
+            return false;
+        }
+        listener.getLogger().println( "Post to Redmine Site: " + site.name );
+        //listener.getLogger().println("Site: " + site.name + "," + site.url + "," + site.apiAccessKey + "," + site.projectId);
 
-        RedmineManager mgr = RedmineManagerFactory.createWithApiKey(redmineHost, apiAccessKey);
+        // everything derived from this build lives in the context, the task is shared by concurrent builds
+        RenderContext context = new RenderContext(build, matrix);
+        long renderStart = System.nanoTime();
+        String redmineSubject;
+        String redmineDescription;
+        try {
+            String[] rendered = render(context);
+            redmineSubject = rendered[0];
+            redmineDescription = rendered[1];
+        } catch (IOException ex) {
+            Logger.getLogger(RedminePostTask.class.getName()).log(Level.SEVERE, null, ex);
+            listener.getLogger().println(ex.toString());
+            return false;
+        }
+        SiteMetrics.get(site.name).recordPhase(SiteMetrics.Phase.RENDER, renderStart);
 
-        ProjectManager projectMgr = mgr.getProjectManager();
-        Project project = projectMgr.getProjectByKey(projectKey);
-        int projectId = project.getId().intValue();
+        boolean failed = build.getResult().isWorseThan(Result.SUCCESS);
+        String fingerprint = null;
+        if (deduplicate && failed) {
+            try {
+                fingerprint = fingerprintOf(build, matrix);
+            } catch (IOException ex) {
+                Logger.getLogger(RedminePostTask.class.getName()).log(Level.WARNING, null, ex);
+                listener.getLogger().println(ex.toString());
+            }
+        }
 
-        UserManager userMgr = mgr.getUserManager();
-        User currentUser = userMgr.getCurrentUser();
+        // the rendered post is shared by every target
+        String logFile = context.isAttachingLog() ? build.getLogFile().getAbsolutePath() : null;
+        List<Delivery> deliveries = new ArrayList<Delivery>();
+        boolean isSuccess = true;
+        for (String[] target : getTargets()) {
+            RedmineSite targetSite = RedmineSite.get(target[0]);
+            if (targetSite == null) {
+                listener.getLogger().println("Unknown Redmine site: " + target[0]);
+                isSuccess = false;
+                continue;
+            }
+            String groupFingerprint = null;
+            if (targetSite.getCoalesceWindow() > 0 && failed) {
+                try {
+                    groupFingerprint = fingerprint != null ? fingerprint : fingerprintOf(build, matrix);
+                } catch (IOException ex) {
+                    Logger.getLogger(RedminePostTask.class.getName()).log(Level.WARNING, null, ex);
+                    listener.getLogger().println(ex.toString());
+                }
+            }
+            RedminePost post = new RedminePost(targetSite.name, redmineSubject, redmineDescription,
+                                               build.getProject().getFullName(), build.getNumber(),
+                                               fingerprint, logFile, getAttachLogMaxBytes(), target[1]);
+            deliveries.add(new Delivery(targetSite, post, groupFingerprint));
+        }
 
-        Issue redmineIssue = IssueFactory.create(projectId, redmineSubject);
-        redmineIssue.setDescription(redmineDescription);
-        redmineIssue.setAssignee(currentUser);
-        IssueManager issueMgr = mgr.getIssueManager();
-        issueMgr.createIssue(redmineIssue);
+        if (deliveries.size() == 1) {
+            Delivery delivery = deliveries.get(0);
+            isSuccess &= delivery.call();
+            delivery.report(listener.getLogger());
+            return isSuccess;
+        }
 
-        String userName = currentUser.getFullName();
+        // post to all targets at once, a slow one only delays its own result
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(deliveries.size());
+        for (Delivery delivery : deliveries) {
+            futures.add(FAN_OUT.submit(delivery));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(getTargetTimeout());
+        for (int i = 0; i < deliveries.size(); i++) {
+            Delivery delivery = deliveries.get(i);
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                isSuccess &= futures.get(i).get(remaining, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                futures.get(i).cancel(true);
+                if (delivery.abandon()) {
+                    // never got a thread, the outbox replay posts it instead
+                    RedmineOutbox.get().add(delivery.post);
+                    delivery.message("Redmine task for " + delivery.post.getTarget() + " not started after "
+                                     + getTargetTimeout() + "s, saved to the outbox as ticket "
+                                     + delivery.post.ticket + ".");
+                } else {
+                    delivery.message("Redmine task for " + delivery.post.getTarget() + " still posting after "
+                                     + getTargetTimeout() + "s, cancelled. Ticket " + delivery.post.ticket
+                                     + " goes to the outbox unless it completes.");
+                }
+            } catch (ExecutionException ex) {
+                Logger.getLogger(RedminePostTask.class.getName()).log(Level.SEVERE, null, ex.getCause());
+                delivery.message(String.valueOf(ex.getCause()));
+                isSuccess = false;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                delivery.message("Interrupted while posting to " + delivery.post.getTarget()
+                                 + ", ticket " + delivery.post.ticket + " completes in the background.");
+            }
+            delivery.report(listener.getLogger());
+        }
+        return isSuccess;
     }
-    
-    private boolean postTaskToRedmine(AbstractBuild<?, ?> build, BuildListener listener) {
-        RedmineSite site = RedmineSite.get(siteName);
-        listener.getLogger().println( "Post to Redmine Site: " + site.name );
-        //listener.getLogger().println("Site: " + site.name + "," + site.url + "," + site.apiAccessKey + "," + site.projectId);
 
-        //build.getBuildVariables();
-        
+    /**
+     * Returns the subject and description of the post.
+     */
+    private String[] render(RenderContext context) throws IOException {
         // Set Subject: 
-        String redmineSubject = getSubject(build);
+        String redmineSubject = getSubject(context);
         // Set Description: 
-        String redmineDescription;        
-
-        // Default Description
+        String redmineDescription;
         if (description.equals("")) {
-            mAbsoluteUrl = build.getAbsoluteUrl();
-            redmineDescription = getResults(build);
+            // Default Description
+            redmineDescription = context.matrix != null ? context.matrix.getSummary() : getResults(context);
+            redmineDescription += getDescription(context);
+        } else {
+            redmineDescription = getDescriptionTemplate().render(context);
+        }
+        return new String[] {redmineSubject, redmineDescription};
+    }
+
+    /**
+     * Renders a build the way {@link #perform} does and returns its post for
+     * every known target, for posts made outside of the build step.
+     *
+     * @param current whether the build is part of the current failure
+     *                streak and may be deduplicated; false for old builds
+     */
+    List<RedminePost> createPosts(AbstractBuild<?, ?> build, boolean current) throws IOException {
+        RenderContext context = new RenderContext(build, null);
+        String[] rendered = render(context);
+        String fingerprint = null;
+        if (current && deduplicate && build.getResult().isWorseThan(Result.SUCCESS)) {
+            fingerprint = fingerprintOf(build, null);
+        }
+        String logFile = context.isAttachingLog() ? build.getLogFile().getAbsolutePath() : null;
+        List<RedminePost> posts = new ArrayList<RedminePost>();
+        for (String[] target : getTargets()) {
+            if (RedmineSite.get(target[0]) != null) {
+                posts.add(new RedminePost(target[0], rendered[0], rendered[1], build.getProject().getFullName(),
+                                          build.getNumber(), fingerprint, logFile, getAttachLogMaxBytes(),
+                                          target[1]));
+            }
+        }
+        return posts;
+    }
+
+    /**
+     * Whether a failure fingerprint is used, to deduplicate or to coalesce
+     * posts to any of the targets.
+     */
+    boolean needsFingerprint() {
+        if (deduplicate) {
+            return true;
+        }
+        for (String[] target : getTargets()) {
+            RedmineSite site = RedmineSite.get(target[0]);
+            if (site != null && site.getCoalesceWindow() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Site name and project identifier (null for the site's own project) of
+     * every target: the site of the task first, then the additional targets.
+     */
+    List<String[]> getTargets() {
+        List<String[]> targets = new ArrayList<String[]>();
+        targets.add(new String[] {siteName, null});
+        if (additionalTargets == null) {
+            return targets;
+        }
+        for (String line : additionalTargets.split("\r?\n")) {
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            targets.add(parseTarget(line));
+        }
+        return targets;
+    }
+
+    /**
+     * Splits {@code site} or {@code site:project} into site name and project
+     * identifier. A site whose name contains a colon is matched as a whole.
+     */
+    static String[] parseTarget(String target) {
+        int colon = target.lastIndexOf(':');
+        if (colon < 0 || RedmineSite.get(target) != null) {
+            return new String[] {target, null};
+        }
+        return new String[] {target.substring(0, colon).trim(), target.substring(colon + 1).trim()};
+    }
+
+    /**
+     * Sends one post to its target. Progress is collected and printed to the
+     * build log by the build thread, deliveries may run on other threads.
+     */
+    private final class Delivery implements Callable<Boolean> {
+
+        final RedmineSite site;
+
+        final RedminePost post;
+
+        /**
+         * Fingerprint to coalesce the post by, null to post it on its own.
+         */
+        final String groupFingerprint;
+
+        private final List<String> messages = new ArrayList<String>();
+
+        /**
+         * Set when the delivery starts, or when the build stops waiting for it.
+         */
+        private final AtomicBoolean taken = new AtomicBoolean();
+
+        Delivery(RedmineSite site, RedminePost post, String groupFingerprint) {
+            this.site = site;
+            this.post = post;
+            this.groupFingerprint = groupFingerprint;
+        }
+
+        /**
+         * Keeps the delivery from starting. Returns false if it has started already.
+         */
+        boolean abandon() {
+            return taken.compareAndSet(false, true);
+        }
+
+        public Boolean call() {
+            if (!taken.compareAndSet(false, true)) {
+                return false;
+            }
+            String target = post.getTarget();
+            if (groupFingerprint != null) {
+                RedminePostCoalescer.get().add(site, post, groupFingerprint);
+                message("Redmine task for " + target + " held for " + site.getCoalesceWindow()
+                        + "s to merge with similar failures, ticket " + post.ticket + ".");
+                return true;
+            }
+            if (asyncPost) {
+                if (RedminePostQueue.get().offer(post)) {
+                    message("Redmine task for " + target + " queued as ticket " + post.ticket + ".");
+                    return true;
+                }
+                message("Redmine post queue is full, posting synchronously.");
+            }
+
+            Issue issue;
             try {
-                redmineDescription += getDescription(build);
-            } catch (IOException ex) {
+                issue = RedmineIssuePoster.post(site, post);
+            } catch (RedmineException ex) {
                 Logger.getLogger(RedminePostTask.class.getName()).log(Level.SEVERE, null, ex);
-                listener.getLogger().println(ex.toString());
+                message(ex.toString());
+                if (RedmineIssuePoster.isRetryable(ex) && RedmineOutbox.get().add(post)) {
+                    message("Redmine task for " + target + " saved to the outbox as ticket " + post.ticket
+                            + " and will be posted later.");
+                    return true;
+                }
                 return false;
             }
-        } else {
-            redmineDescription = description;
+
+            message("Redmine task posted to " + target + ": #" + issue.getId());
+            return true;
         }
 
-        try {
-            tryPostTaskToRedmine(site, redmineSubject, redmineDescription);
-        } catch (RedmineException ex) {
-            Logger.getLogger(RedminePostTask.class.getName()).log(Level.SEVERE, null, ex);
-            listener.getLogger().println(ex.toString());
-            return false;
+        synchronized void message(String message) {
+            messages.add(message);
         }
-        
-        listener.getLogger().println("Redmine task created.");
 
-        return true;
+        synchronized void report(PrintStream logger) {
+            for (String message : messages) {
+                logger.println(message);
+            }
+            messages.clear();
+        }
     }
-    
-    private String getSubject(AbstractBuild<?, ?> build) {
+
+    private static String fingerprintOf(AbstractBuild<?, ?> build, RedmineMatrixAggregator matrix)
+            throws IOException {
+        return matrix != null ? matrix.getFingerprint() : FailureFingerprint.of(build);
+    }
+
+    private String getSubject(RenderContext context) throws IOException {
+        AbstractBuild<?, ?> build = context.build;
         if( !"".equals(subject) ) {
-            return subject;
+            return getSubjectTemplate().render(context);
         }
         // Default Subject
         String defaultSubject = build.getProject().getName() + " " + build.getDisplayName();
@@ -193,14 +562,29 @@ public class RedminePostTask extends Recorder {
         return defaultSubject;
     }
     
-    private String getDescription(AbstractBuild<?, ?> build) throws IOException {
+    private String getDescription(RenderContext context) throws IOException {
         StringBuilder defaultDescription = new StringBuilder();
 
         defaultDescription.append("h2. \"*Console output*\":");
-        defaultDescription.append(mAbsoluteUrl + "console");
+        defaultDescription.append(context.absoluteUrl + "console");
         defaultDescription.append(gLineSeparetor + gLineSeparetor);
 
-        List<String> log_lines = build.getLog(LOG_MAX_LINES);
+        int maxLines = getLogMaxLines();
+        if (context.isAttachingLog()) {
+            // the log goes along, a short excerpt is enough here; the poster says how the upload went
+            maxLines = Math.min(maxLines, ATTACHED_LOG_EXCERPT_LINES);
+        }
+        List<String> log_lines = Collections.emptyList();
+        if (extractErrors) {
+            log_lines = ErrorRegions.read(context.build, getErrorMatcher(), ERROR_CONTEXT_LINES,
+                                          maxLines, getLogMaxBytes());
+            if (!log_lines.isEmpty()) {
+                defaultDescription.append("Log around errors:" + gLineSeparetor + gLineSeparetor);
+            }
+        }
+        if (log_lines.isEmpty()) {
+            log_lines = LogTail.read(context.build, maxLines, getLogMaxBytes());
+        }
         defaultDescription.append("<pre>" + gLineSeparetor);
         for (Iterator<String> it = log_lines.iterator(); it.hasNext();) {
             String log = it.next();
@@ -213,46 +597,154 @@ public class RedminePostTask extends Recorder {
     }
         
     
-    private String getResult(TestResultAction result) {
-        StringBuilder description = new StringBuilder();
+    private void getResult(RenderContext context, TestResultRenderer renderer, TestResultAction result) {
+        appendResult(renderer, result.getDisplayName(), context.absoluteUrl, result);
+    }
 
-        description.append("h2. \"" + result.getDisplayName() + "\"");
-        description.append(":" + mAbsoluteUrl + result.getUrlName());
-        description.append(gLineSeparetor + gLineSeparetor);
+    void appendResult(TestResultRenderer renderer, String displayName, String buildUrl, TestResultAction result) {
+        String url = buildUrl + result.getUrlName();
+        if (incrementalResults) {
+            renderer.appendChanges(displayName, url, result.getTotalCount(), result.getFailCount(),
+                                   TestResultDiff.of(result));
+        } else {
+            renderer.appendResult(displayName, url, result.getTotalCount(), result.getFailCount(),
+                                  result.getFailedTests());
+        }
+    }
 
-        description.append(result.getTotalCount() + " tests and ");
-        description.append(result.getFailCount() + " failures");
-        description.append(gLineSeparetor);
+    /**
+     * Create result summary of JUnit.
+     */
+    private String getResults(RenderContext context) {
+        TestResultRenderer renderer = createResultRenderer();
+        for (TestResultAction result :
+               context.build.getActions(TestResultAction.class))
+          getResult(context, renderer, result);
+        return renderer.toString();
+    }
+
+    TestResultRenderer createResultRenderer() {
+        return new TestResultRenderer(RESULTS_MAX_CHARS, RESULT_DETAIL_MAX_CHARS, gLineSeparetor);
+    }
 
-        for (CaseResult fail : result.getFailedTests()) {
-            description.append("* " + fail.getClassName() + "." +
-                               fail.getDisplayName() + gLineSeparetor);
-            description.append("<pre>" + gLineSeparetor);
-            description.append(fail.getErrorDetails());
-            description.append("</pre>" + gLineSeparetor);
-            description.append(gLineSeparetor);
+    private PostTemplate getSubjectTemplate() {
+        PostTemplate template = subjectTemplate;
+        if (template == null) {
+            template = PostTemplate.compile(subject);
+            subjectTemplate = template;
         }
+        return template;
+    }
 
-        description.append(gLineSeparetor);
-        return description.toString();
+    private MarkerMatcher getErrorMatcher() {
+        MarkerMatcher matcher = errorMatcher;
+        if (matcher == null) {
+            matcher = MarkerMatcher.compile(getErrorMarkers());
+            errorMatcher = matcher;
+        }
+        return matcher;
+    }
+
+    private PostTemplate getDescriptionTemplate() {
+        PostTemplate template = descriptionTemplate;
+        if (template == null) {
+            template = PostTemplate.compile(description);
+            descriptionTemplate = template;
+        }
+        return template;
     }
 
     /**
-     * Create result summary of JUnit.
+     * State of rendering one post. A task instance is shared by every build
+     * of its job, and builds may run concurrently, so nothing build-specific
+     * may be kept in the task itself.
+     *
+     * The context also provides the template variables. The test results and
+     * the log tail are only computed when a template uses them.
      */
-    private String getResults(AbstractBuild<?, ?> build) {
-        StringBuilder description = new StringBuilder();
-        for (TestResultAction result :
-               build.getActions(TestResultAction.class))
-          description.append(getResult(result));
-        return description.toString();
+    private final class RenderContext implements PostTemplate.Resolver {
+
+        final AbstractBuild<?, ?> build;
+
+        final String absoluteUrl;
+
+        final RedmineMatrixAggregator matrix;
+
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        private Boolean attachingLog;
+
+        RenderContext(AbstractBuild<?, ?> build, RedmineMatrixAggregator matrix) {
+            this.build = build;
+            this.matrix = matrix;
+            this.absoluteUrl = build.getAbsoluteUrl();
+        }
+
+        /**
+         * Whether the console log goes with the post. Decided once, so that
+         * the description and the post agree.
+         */
+        boolean isAttachingLog() {
+            if (attachingLog == null) {
+                attachingLog = attachLog && LogAttachment.canAttach(build.getLogFile(), getAttachLogMaxBytes());
+            }
+            return attachingLog;
+        }
+
+        public String resolve(String name) throws IOException {
+            if (!values.containsKey(name)) {
+                values.put(name, compute(name));
+            }
+            return values.get(name);
+        }
+
+        private String compute(String name) throws IOException {
+            if ("JOB_NAME".equals(name)) {
+                return build.getProject().getFullName();
+            } else if ("BUILD_NUMBER".equals(name)) {
+                return String.valueOf(build.getNumber());
+            } else if ("BUILD_DISPLAY_NAME".equals(name)) {
+                return build.getDisplayName();
+            } else if ("BUILD_URL".equals(name)) {
+                return absoluteUrl;
+            } else if ("CONSOLE_URL".equals(name)) {
+                return absoluteUrl + "console";
+            } else if ("RESULT".equals(name)) {
+                return String.valueOf(build.getResult());
+            } else if ("TEST_SUMMARY".equals(name)) {
+                int total = 0;
+                int failed = 0;
+                for (TestResultAction result : build.getActions(TestResultAction.class)) {
+                    total += result.getTotalCount();
+                    failed += result.getFailCount();
+                }
+                return total + " tests and " + failed + " failures";
+            } else if ("MATRIX_SUMMARY".equals(name)) {
+                return matrix != null ? matrix.getSummary() : "";
+            } else if ("FAILED_TESTS".equals(name)) {
+                return getResults(this);
+            } else if ("LOG_TAIL".equals(name)) {
+                StringBuilder tail = new StringBuilder();
+                for (String line : LogTail.read(build, getLogMaxLines(), getLogMaxBytes())) {
+                    tail.append(line).append(gLineSeparetor);
+                }
+                return tail.toString();
+            } else if ("LOG_ERRORS".equals(name)) {
+                StringBuilder regions = new StringBuilder();
+                for (String line : ErrorRegions.read(build, getErrorMatcher(), ERROR_CONTEXT_LINES,
+                                                     getLogMaxLines(), getLogMaxBytes())) {
+                    regions.append(line).append(gLineSeparetor);
+                }
+                return regions.toString();
+            }
+            // build parameters
+            return build.getBuildVariables().get(name);
+        }
     }
 
     @Extension
     public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
-        
-        private volatile RedmineSite[] sites = new RedmineSite[0];
-        
+
 	public DescriptorImpl() {
 		super(RedminePostTask.class);
 		load();
@@ -267,13 +759,20 @@ public class RedminePostTask extends Recorder {
 		return "Redmine post task";
 	}
 
+        /**
+         * Sites are owned by {@link RedmineProjectProperty.DescriptorImpl};
+         * this replaces and saves its global site list.
+         */
         public void setSites(RedmineSite... sites) {
-                this.sites = sites;
-                save();
+                RedmineProjectProperty.DESCRIPTOR.replaceSites(sites);
         }
 
         public RedmineSite[] getSites() {
                 return RedmineProjectProperty.DESCRIPTOR.getSites();
+        }
+
+        public String getDefaultErrorMarkers() {
+                return ErrorRegions.DEFAULT_MARKERS;
         }        
     }
     
@@ -24,11 +24,7 @@
 
 package jenkins.plugins.redmineposttask;
 
-import com.taskadapter.redmineapi.ProjectManager;
 import com.taskadapter.redmineapi.bean.Project;
-import com.taskadapter.redmineapi.RedmineException;
-import com.taskadapter.redmineapi.RedmineManager;
-import com.taskadapter.redmineapi.RedmineManagerFactory;
 import hudson.Extension;
 import hudson.matrix.MatrixRun;
 import hudson.model.*;
@@ -37,12 +33,16 @@ import hudson.util.FormValidation;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 public class RedmineProjectProperty extends JobProperty<AbstractProject<?, ?>> {
     
@@ -68,9 +68,9 @@ public class RedmineProjectProperty extends JobProperty<AbstractProject<?, ?>> {
 	public RedmineProjectProperty(String siteName) {
             if (siteName == null) {
                 // defaults to the first one
-                RedmineSite[] sites = DESCRIPTOR.getSites();
-                if (sites.length > 0) {
-                    siteName = sites[0].getName();
+                RedmineSite first = DESCRIPTOR.getSiteIndex().first();
+                if (first != null) {
+                    siteName = first.getName();
                 }
             }
             this.siteName = siteName;
@@ -83,16 +83,11 @@ public class RedmineProjectProperty extends JobProperty<AbstractProject<?, ?>> {
         
         
          public RedmineSite getSite() {
-            final RedmineSite[] sites = DESCRIPTOR.getSites();
-            if (siteName == null && sites.length > 0) {
-                return sites[0];
-            }
-            for (final RedmineSite site : sites) {
-                if (site.getName().equals(siteName)) {
-                    return site;
-                }
+            final SiteIndex sites = DESCRIPTOR.getSiteIndex();
+            if (siteName == null) {
+                return sites.first();
             }
-            return null;
+            return sites.get(siteName);
         }
         
         /*
@@ -104,11 +99,29 @@ public class RedmineProjectProperty extends JobProperty<AbstractProject<?, ?>> {
 
 	public static final class DescriptorImpl extends JobPropertyDescriptor {
 
+            /**
+             * Persisted form of the sites. Only changed through this
+             * descriptor, which republishes {@link #siteIndex} each time.
+             */
             private final CopyOnWriteList<RedmineSite> sites = new CopyOnWriteList<RedmineSite>();
 
+            private transient volatile SiteIndex siteIndex = SiteIndex.EMPTY;
+
+            /**
+             * Upper bound of pooled connections kept per Redmine site.
+             */
+            private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+            /**
+             * Seconds after which an unused pooled connection is closed.
+             */
+            private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
             public DescriptorImpl() {
                     super(RedmineProjectProperty.class);
                     load();
+                    siteIndex = new SiteIndex(sites.getView());
+                    RedmineClientRegistry.configure(getMaxConnections(), getIdleTimeout());
             }
 
             @Override
@@ -124,17 +137,48 @@ public class RedmineProjectProperty extends JobProperty<AbstractProject<?, ?>> {
             }
 
             public void setSites(RedmineSite site) {
-                sites.add(site);
-                //Hudson.getInstance().getDescriptorByType(RedminePostTask.DescriptorImpl.class).setSites(site);
+                addSite(site);
             }
 
             public RedmineSite[] getSites() {
-                return sites.toArray(new RedmineSite[0]);
-                //return Hudson.getInstance().getDescriptorByType(RedminePostTask.DescriptorImpl.class).getSites();
+                return siteIndex.toArray();
             }
 
-            void addSite(RedmineSite site) {
+            /**
+             * Current sites, for lookups that should not copy the list.
+             */
+            SiteIndex getSiteIndex() {
+                return siteIndex;
+            }
+
+            synchronized void addSite(RedmineSite site) {
                 sites.add(site);
+                siteIndex = new SiteIndex(sites.getView());
+            }
+
+            void replaceSites(RedmineSite... newSites) {
+                synchronized (this) {
+                    sites.replaceBy(Arrays.asList(newSites));
+                    siteIndex = new SiteIndex(sites.getView());
+                    save();
+                }
+                sitesReplaced();
+            }
+
+            public int getMaxConnections() {
+                return maxConnections > 0 ? maxConnections : DEFAULT_MAX_CONNECTIONS;
+            }
+
+            public int getIdleTimeout() {
+                return idleTimeout > 0 ? idleTimeout : DEFAULT_IDLE_TIMEOUT;
+            }
+
+            public long getMergedPostCount() {
+                return RedminePostCoalescer.get().getMergedPostCount();
+            }
+
+            public long getCoalescedIssueCount() {
+                return RedminePostCoalescer.get().getCoalescedIssueCount();
             }
 
             @Override
@@ -149,11 +193,68 @@ public class RedmineProjectProperty extends JobProperty<AbstractProject<?, ?>> {
 
             @Override
             public boolean configure(StaplerRequest req, JSONObject formData) {
-                    sites.replaceBy(req.bindParametersToList(RedmineSite.class, "m."));
+                    for (RedmineSite site : siteIndex.toArray()) {
+                        site.invalidateMetadata();
+                    }
+                    synchronized (this) {
+                        sites.replaceBy(req.bindParametersToList(RedmineSite.class, "m."));
+                        siteIndex = new SiteIndex(sites.getView());
+                    }
+                    maxConnections = parsePositiveInt(req.getParameter("redmine.maxConnections"),
+                                                      DEFAULT_MAX_CONNECTIONS);
+                    idleTimeout = parsePositiveInt(req.getParameter("redmine.idleTimeout"),
+                                                   DEFAULT_IDLE_TIMEOUT);
                     save();
+                    RedmineClientRegistry.configure(getMaxConnections(), getIdleTimeout());
+                    sitesReplaced();
                     return true;
             }
 
+            /**
+             * Lets go of what belonged to the sites before they were replaced.
+             * State kept by site name stays with the sites still configured.
+             */
+            private void sitesReplaced() {
+                // pooled clients still point at the old sites
+                RedmineClientRegistry.retireAll();
+                List<String> names = new ArrayList<String>();
+                for (RedmineSite site : siteIndex.toArray()) {
+                    names.add(site.name);
+                }
+                CircuitBreaker.retainAll(names);
+                SiteMetrics.retainAll(names);
+            }
+
+            private static int parsePositiveInt(String value, int defaultValue) {
+                if (value == null) {
+                    return defaultValue;
+                }
+                try {
+                    int parsed = Integer.parseInt(value.trim());
+                    return parsed > 0 ? parsed : defaultValue;
+                } catch (NumberFormatException e) {
+                    return defaultValue;
+                }
+            }
+
+            /**
+             * Serves the metrics of every Redmine site as read-only JSON.
+             */
+            public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+                Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+
+                JSONObject sitesJson = new JSONObject();
+                for (SiteMetrics metrics : SiteMetrics.all()) {
+                    sitesJson.element(metrics.getSiteName(), metrics.toJSON());
+                }
+                JSONObject json = new JSONObject();
+                json.element("sites", sitesJson);
+                json.element("queueSize", RedminePostQueue.get().size());
+                json.element("outboxPending", RedmineOutbox.get().getPendingCount());
+                rsp.setContentType("application/json;charset=UTF-8");
+                json.write(rsp.getWriter());
+            }
+
             public FormValidation doCheckRequired(@QueryParameter String value) {
                 return FormValidation.validateRequired(value);
             }
@@ -176,18 +277,14 @@ public class RedmineProjectProperty extends JobProperty<AbstractProject<?, ?>> {
                     return FormValidation.error("URL invalid error.");
                 }
 
-                RedmineManager redmineMgr = RedmineManagerFactory.createWithApiKey(url, apiAccessKey);
-                try {
-                    ProjectManager projectMgr = redmineMgr.getProjectManager();
-                    projectMgr.getProjectByKey(projectId);
-                } catch (RedmineException ex) {
-                    return FormValidation.error(ex.toString());
-                }
-
-                return FormValidation.ok("OK.");
+                return LoginCheck.check(url, apiAccessKey, projectId);
             }
                 
 	}
 
+	private static final int DEFAULT_MAX_CONNECTIONS = RedmineClientRegistry.DEFAULT_MAX_CONNECTIONS;
+
+	private static final int DEFAULT_IDLE_TIMEOUT = RedmineClientRegistry.DEFAULT_IDLE_TIMEOUT;
+
 	private static final Logger LOGGER = Logger.getLogger(RedmineProjectProperty.class.getName());
 }
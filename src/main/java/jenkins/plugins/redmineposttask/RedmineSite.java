@@ -24,10 +24,20 @@
 
 package jenkins.plugins.redmineposttask;
 
+import com.taskadapter.redmineapi.RedmineException;
+import com.taskadapter.redmineapi.RedmineManager;
+import com.taskadapter.redmineapi.bean.IssueStatus;
+import com.taskadapter.redmineapi.bean.Project;
+import com.taskadapter.redmineapi.bean.User;
 import hudson.model.AbstractProject;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
@@ -46,9 +56,40 @@ public class RedmineSite {
     public final String apiAccessKey;
     
     public final String projectId;
+
+    /**
+     * Seconds during which posts for the same failure are held back and
+     * merged into one issue; 0 posts right away.
+     */
+    public final int coalesceWindow;
+
+    /**
+     * Requests per second allowed to this site; 0 for no limit.
+     */
+    public final int requestsPerSecond;
+
+    private transient CircuitBreaker circuitBreaker;
+
+    private transient TokenBucket rateLimiter;
     
     /**
-     * Used to guard the computation of {@link #projects}
+     * Project id and API key user looked up from Redmine, cached for {@link #METADATA_TTL}.
+     */
+    private transient volatile Metadata metadata;
+
+    /**
+     * Ids of the projects other than {@link #projectId} that posts target,
+     * by identifier. Cleared along with {@link #metadata}.
+     */
+    private transient ConcurrentMap<String, Integer> otherProjectIds = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Ids of the issue statuses that close an issue. Cleared along with {@link #metadata}.
+     */
+    private transient volatile Set<Integer> closedStatusIds;
+
+    /**
+     * Used to guard the computation of {@link #metadata}
      */
    private transient Lock projectUpdateLock = new ReentrantLock();
 
@@ -61,27 +102,20 @@ public class RedmineSite {
             }
         }
 
-        final RedmineSite[] sites = RedmineProjectProperty.DESCRIPTOR.getSites();
-        if (sites.length == 1) {
-            return sites[0];
+        final SiteIndex sites = RedmineProjectProperty.DESCRIPTOR.getSiteIndex();
+        if (sites.size() == 1) {
+            return sites.first();
         }
 
         return null;
     }
     public static RedmineSite get(final String name) {
-        final RedmineSite[] sites = RedmineProjectProperty.DESCRIPTOR.getSites();
-        // find site with name
-        for (RedmineSite site : sites ) {
-            if( site.name.equals(name) ) {
-                return site;
-            }
-        }
-        
-        return null;
+        return RedmineProjectProperty.DESCRIPTOR.getSiteIndex().get(name);
     }
     
     @DataBoundConstructor
-    public RedmineSite(String name, URL url, String apiAccessKey, String projectId) {
+    public RedmineSite(String name, URL url, String apiAccessKey, String projectId, int coalesceWindow,
+                       int requestsPerSecond) {
         if(!url.toExternalForm().endsWith("/")) {
             try {
                 url = new URL(url.toExternalForm()+"/");
@@ -93,13 +127,140 @@ public class RedmineSite {
         this.url = url;
         this.apiAccessKey = apiAccessKey;
         this.projectId = projectId;
+        this.coalesceWindow = Math.max(coalesceWindow, 0);
+        this.requestsPerSecond = Math.max(requestsPerSecond, 0);
+        this.circuitBreaker = CircuitBreaker.get(name);
+        this.rateLimiter = createRateLimiter();
     }
     
     protected Object readResolve() {
         projectUpdateLock = new ReentrantLock();
+        otherProjectIds = new ConcurrentHashMap<String, Integer>();
+        circuitBreaker = CircuitBreaker.get(name);
+        rateLimiter = createRateLimiter();
         return this;
     }
 
+    private TokenBucket createRateLimiter() {
+        return requestsPerSecond > 0 ? new TokenBucket(requestsPerSecond) : null;
+    }
+
+    /**
+     * Reserves a post to this site. Fails fast while the circuit breaker is
+     * open. The outcome of the post must be reported to
+     * {@link #getCircuitBreaker()}. Every HTTP request the post makes then
+     * goes through {@link #acquireRequest()}.
+     */
+    void acquireCall() throws SiteUnavailableException {
+        if (!circuitBreaker.allow()) {
+            throw new SiteUnavailableException("Redmine site " + name + " is unavailable, circuit breaker is open");
+        }
+    }
+
+    /**
+     * Takes a token of the rate limit for one HTTP request. Fails fast when
+     * the rate limit would hold the caller back too long; that failure must
+     * be reported to the circuit breaker as ignored.
+     */
+    void acquireRequest() throws SiteUnavailableException {
+        if (rateLimiter == null) {
+            return;
+        }
+        boolean acquired;
+        try {
+            acquired = rateLimiter.acquire(RATE_LIMIT_MAX_WAIT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            throw new SiteUnavailableException("Redmine site " + name + " is over its rate limit of "
+                                               + requestsPerSecond + " requests per second");
+        }
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+
+    /**
+     * Returns the cached project id and current user of this site, refreshing
+     * them with the given manager when missing or expired. Only one thread
+     * talks to Redmine while the others wait for its result.
+     */
+    Metadata getMetadata(RedmineManager mgr) throws RedmineException {
+        Metadata m = metadata;
+        if (m != null && !m.isExpired()) {
+            return m;
+        }
+        projectUpdateLock.lock();
+        try {
+            m = metadata;
+            if (m != null && !m.isExpired()) {
+                return m;
+            }
+            SiteMetrics metrics = SiteMetrics.get(name);
+            acquireRequest();
+            long start = System.nanoTime();
+            Project project = mgr.getProjectManager().getProjectByKey(projectId);
+            metrics.recordPhase(SiteMetrics.Phase.PROJECT_LOOKUP, start);
+            acquireRequest();
+            start = System.nanoTime();
+            User currentUser = mgr.getUserManager().getCurrentUser();
+            metrics.recordPhase(SiteMetrics.Phase.USER_LOOKUP, start);
+            m = new Metadata(project.getId().intValue(), currentUser);
+            metadata = m;
+            return m;
+        } finally {
+            projectUpdateLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the id of the project with the given identifier, looking it up
+     * once if it is not the site's own project.
+     */
+    int getProjectId(RedmineManager mgr, String projectKey) throws RedmineException {
+        if (projectKey.equals(projectId)) {
+            return getMetadata(mgr).projectId;
+        }
+        Integer id = otherProjectIds.get(projectKey);
+        if (id == null) {
+            acquireRequest();
+            long start = System.nanoTime();
+            Project project = mgr.getProjectManager().getProjectByKey(projectKey);
+            SiteMetrics.get(name).recordPhase(SiteMetrics.Phase.PROJECT_LOOKUP, start);
+            id = project.getId();
+            otherProjectIds.put(projectKey, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the ids of the issue statuses that close an issue, looking
+     * them up once.
+     */
+    Set<Integer> getClosedStatusIds(RedmineManager mgr) throws RedmineException {
+        Set<Integer> ids = closedStatusIds;
+        if (ids == null) {
+            ids = new HashSet<Integer>();
+            acquireRequest();
+            for (IssueStatus status : mgr.getIssueManager().getStatuses()) {
+                if (status.isClosed()) {
+                    ids.add(status.getId());
+                }
+            }
+            closedStatusIds = ids;
+        }
+        return ids;
+    }
+
+    void invalidateMetadata() {
+        metadata = null;
+        otherProjectIds.clear();
+        closedStatusIds = null;
+    }
 
     public String getName() {
         return name;
@@ -108,6 +269,18 @@ public class RedmineSite {
     public URL getUrl() throws IOException {
         return url;
     }
+
+    public int getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    public int getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    public String getCircuitState() {
+        return circuitBreaker.getState().name();
+    }
     
     
     
@@ -138,5 +311,35 @@ public class RedmineSite {
         }
     }
     
+    static final class Metadata {
+
+        final int projectId;
+
+        final User currentUser;
+
+        private final long expiresAt;
+
+        Metadata(int projectId, User currentUser) {
+            this.projectId = projectId;
+            this.currentUser = currentUser;
+            this.expiresAt = System.currentTimeMillis() + METADATA_TTL;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+
+    /**
+     * Longest time a post waits for the rate limiter, in milliseconds.
+     */
+    private static final long RATE_LIMIT_MAX_WAIT = 5 * 1000;
+
+    /**
+     * How long project and user lookups are cached, in milliseconds.
+     */
+    private static final long METADATA_TTL = Long.getLong(RedmineSite.class.getName() + ".metadataTtl",
+                                                          TimeUnit.MINUTES.toMillis(10));
+
     private static final Logger LOGGER = Logger.getLogger(RedmineSite.class.getName());
 }
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the configured Redmine sites, indexed by name.
+ *
+ * A new snapshot is published whenever the site list changes, so lookups
+ * neither lock nor copy anything. When several sites share a name the first
+ * one wins, as the former linear search did.
+ */
+final class SiteIndex {
+
+    static final SiteIndex EMPTY = new SiteIndex(new RedmineSite[0]);
+
+    private final RedmineSite[] sites;
+
+    private final Map<String, RedmineSite> byName;
+
+    SiteIndex(Collection<RedmineSite> sites) {
+        this(sites.toArray(new RedmineSite[sites.size()]));
+    }
+
+    private SiteIndex(RedmineSite[] sites) {
+        this.sites = sites;
+        this.byName = new HashMap<String, RedmineSite>(sites.length * 2);
+        for (RedmineSite site : sites) {
+            if (site.name != null && !byName.containsKey(site.name)) {
+                byName.put(site.name, site);
+            }
+        }
+    }
+
+    RedmineSite get(String name) {
+        return name != null ? byName.get(name) : null;
+    }
+
+    /**
+     * The site used when a job does not name one, or null if there is none.
+     */
+    RedmineSite first() {
+        return sites.length > 0 ? sites[0] : null;
+    }
+
+    int size() {
+        return sites.length;
+    }
+
+    RedmineSite[] toArray() {
+        return sites.clone();
+    }
+}
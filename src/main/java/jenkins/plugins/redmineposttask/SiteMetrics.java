@@ -0,0 +1,301 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import net.sf.json.JSONObject;
+
+/**
+ * Counters and latency histograms of the posts to one Redmine site.
+ *
+ * Metrics are kept by site name, so they survive reconfiguration, and
+ * dropped with their MBean when the site is removed or renamed. Each
+ * site's metrics are registered as an MBean under
+ * {@code jenkins.plugins.redmineposttask:type=SiteMetrics,site=<name>} and
+ * also served as JSON by {@link RedmineProjectProperty.DescriptorImpl#doMetrics}.
+ * Recording only updates preallocated counters.
+ */
+final class SiteMetrics implements SiteMetricsMBean {
+
+    enum Phase {
+        RENDER, PROJECT_LOOKUP, USER_LOOKUP, UPLOAD_LOG, CREATE_ISSUE
+    }
+
+    private static final ConcurrentMap<String, SiteMetrics> METRICS = new ConcurrentHashMap<String, SiteMetrics>();
+
+    private final String siteName;
+
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+
+    private final Histogram payload = new Histogram();
+
+    private final StripedCounter posts = new StripedCounter();
+
+    private final StripedCounter failures = new StripedCounter();
+
+    private final ConcurrentMap<String, StripedCounter> failuresByType = new ConcurrentHashMap<String, StripedCounter>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private SiteMetrics(String siteName) {
+        this.siteName = siteName;
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Histogram();
+        }
+    }
+
+    static SiteMetrics get(String siteName) {
+        SiteMetrics metrics = METRICS.get(siteName);
+        if (metrics == null) {
+            // with retainAll, so an MBean is never unregistered under a new instance
+            synchronized (METRICS) {
+                metrics = METRICS.get(siteName);
+                if (metrics == null) {
+                    metrics = new SiteMetrics(siteName);
+                    METRICS.put(siteName, metrics);
+                    metrics.register();
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Drops the metrics of the sites that are no longer configured and
+     * unregisters their MBeans.
+     */
+    static void retainAll(Collection<String> siteNames) {
+        synchronized (METRICS) {
+            for (Iterator<SiteMetrics> it = METRICS.values().iterator(); it.hasNext();) {
+                SiteMetrics metrics = it.next();
+                if (!siteNames.contains(metrics.siteName)) {
+                    it.remove();
+                    metrics.unregister();
+                }
+            }
+        }
+    }
+
+    static Iterable<SiteMetrics> all() {
+        return METRICS.values();
+    }
+
+    ObjectName getObjectName() throws MalformedObjectNameException {
+        return new ObjectName("jenkins.plugins.redmineposttask:type=SiteMetrics,site=" + ObjectName.quote(siteName));
+    }
+
+    private void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, SiteMetricsMBean.class), getObjectName());
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register metrics MBean of Redmine site " + siteName, e);
+        }
+    }
+
+    private void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (InstanceNotFoundException e) {
+            // registration had failed
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to unregister metrics MBean of Redmine site " + siteName, e);
+        }
+    }
+
+    /**
+     * Records the duration of a phase that started at {@code startNanos}.
+     */
+    void recordPhase(Phase phase, long startNanos) {
+        phases[phase.ordinal()].record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Records a post with the given description.
+     */
+    void recordPost(String description) {
+        posts.increment();
+        payload.record(utf8Length(description));
+    }
+
+    /**
+     * Returns the length of the string encoded as UTF-8, the encoding of the
+     * requests to Redmine, without encoding it.
+     */
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                       && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // an unpaired surrogate is replaced with '?'
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    void recordFailure(Throwable failure) {
+        failures.increment();
+        String type = failure.getClass().getName();
+        StripedCounter counter = failuresByType.get(type);
+        if (counter == null) {
+            StripedCounter created = new StripedCounter();
+            counter = failuresByType.putIfAbsent(type, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.increment();
+    }
+
+    void queued() {
+        queued.incrementAndGet();
+    }
+
+    void dequeued() {
+        queued.decrementAndGet();
+    }
+
+    public String getSiteName() {
+        return siteName;
+    }
+
+    public long getPostCount() {
+        return posts.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public long getRenderMeanMicros() {
+        return phases[Phase.RENDER.ordinal()].getMean();
+    }
+
+    public long getRenderP99Micros() {
+        return phases[Phase.RENDER.ordinal()].getPercentile(99);
+    }
+
+    public long getProjectLookupMeanMicros() {
+        return phases[Phase.PROJECT_LOOKUP.ordinal()].getMean();
+    }
+
+    public long getProjectLookupP99Micros() {
+        return phases[Phase.PROJECT_LOOKUP.ordinal()].getPercentile(99);
+    }
+
+    public long getUserLookupMeanMicros() {
+        return phases[Phase.USER_LOOKUP.ordinal()].getMean();
+    }
+
+    public long getUserLookupP99Micros() {
+        return phases[Phase.USER_LOOKUP.ordinal()].getPercentile(99);
+    }
+
+    public long getUploadLogMeanMicros() {
+        return phases[Phase.UPLOAD_LOG.ordinal()].getMean();
+    }
+
+    public long getUploadLogP99Micros() {
+        return phases[Phase.UPLOAD_LOG.ordinal()].getPercentile(99);
+    }
+
+    public long getCreateIssueMeanMicros() {
+        return phases[Phase.CREATE_ISSUE.ordinal()].getMean();
+    }
+
+    public long getCreateIssueP99Micros() {
+        return phases[Phase.CREATE_ISSUE.ordinal()].getPercentile(99);
+    }
+
+    public long getPayloadMeanBytes() {
+        return payload.getMean();
+    }
+
+    public long getPayloadP99Bytes() {
+        return payload.getPercentile(99);
+    }
+
+    public String getFailuresByType() {
+        return getFailureCounts().toString();
+    }
+
+    private Map<String, Long> getFailureCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, StripedCounter> entry : failuresByType.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.element("posts", getPostCount());
+        json.element("failures", getFailureCount());
+        json.element("queueDepth", getQueueDepth());
+        JSONObject latency = new JSONObject();
+        for (Phase phase : Phase.values()) {
+            latency.element(phase.name(), phases[phase.ordinal()].toJSON());
+        }
+        json.element("latencyMicros", latency);
+        json.element("payloadBytes", payload.toJSON());
+        JSONObject byType = new JSONObject();
+        for (Map.Entry<String, Long> entry : getFailureCounts().entrySet()) {
+            byType.element(entry.getKey(), entry.getValue().longValue());
+        }
+        json.element("failuresByType", byType);
+        return json;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SiteMetrics.class.getName());
+}
@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+/**
+ * JMX view of {@link SiteMetrics}. Latencies are in microseconds.
+ */
+public interface SiteMetricsMBean {
+
+    String getSiteName();
+
+    long getPostCount();
+
+    long getFailureCount();
+
+    int getQueueDepth();
+
+    long getRenderMeanMicros();
+
+    long getRenderP99Micros();
+
+    long getProjectLookupMeanMicros();
+
+    long getProjectLookupP99Micros();
+
+    long getUserLookupMeanMicros();
+
+    long getUserLookupP99Micros();
+
+    long getUploadLogMeanMicros();
+
+    long getUploadLogP99Micros();
+
+    long getCreateIssueMeanMicros();
+
+    long getCreateIssueP99Micros();
+
+    long getPayloadMeanBytes();
+
+    long getPayloadP99Bytes();
+
+    /**
+     * Failure counts by exception class, as {@code name=count} pairs.
+     */
+    String getFailuresByType();
+}
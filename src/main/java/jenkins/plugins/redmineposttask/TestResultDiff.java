@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.TestResultAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Failed tests of a build compared with the previous build that has test
+ * results.
+ *
+ * The previous failures are put in a hash set by full name, so the
+ * comparison is linear in the number of failures of both builds.
+ */
+final class TestResultDiff {
+
+    /**
+     * Tests failing now that passed, or did not exist, in the previous build.
+     */
+    final List<CaseResult> newFailures;
+
+    /**
+     * Number of tests failing in both builds.
+     */
+    final int stillFailing;
+
+    /**
+     * Full names of the tests that failed in the previous build only, sorted.
+     */
+    final List<String> fixed;
+
+    private TestResultDiff(List<CaseResult> newFailures, int stillFailing, List<String> fixed) {
+        this.newFailures = newFailures;
+        this.stillFailing = stillFailing;
+        this.fixed = fixed;
+    }
+
+    static TestResultDiff of(TestResultAction current) {
+        TestResultAction previous = current.getPreviousResult();
+        return of(current.getFailedTests(), previous != null ? previous.getFailedTests() : null);
+    }
+
+    /**
+     * @param previousFailed failed tests of the previous build, null if it
+     *                       has no test results
+     */
+    static TestResultDiff of(List<CaseResult> failedTests, List<CaseResult> previousFailed) {
+        if (previousFailed == null) {
+            return new TestResultDiff(failedTests, 0, Collections.<String>emptyList());
+        }
+
+        Set<String> previousNames = new HashSet<String>(previousFailed.size() * 2);
+        for (CaseResult fail : previousFailed) {
+            previousNames.add(fail.getFullName());
+        }
+        List<CaseResult> newFailures = new ArrayList<CaseResult>();
+        int stillFailing = 0;
+        for (CaseResult fail : failedTests) {
+            // what is left in the set afterwards has been fixed
+            if (previousNames.remove(fail.getFullName())) {
+                stillFailing++;
+            } else {
+                newFailures.add(fail);
+            }
+        }
+        List<String> fixed = new ArrayList<String>(previousNames);
+        Collections.sort(fixed);
+        return new TestResultDiff(newFailures, stillFailing, fixed);
+    }
+}
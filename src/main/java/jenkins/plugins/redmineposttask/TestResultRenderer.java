@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.tasks.junit.CaseResult;
+import java.util.List;
+
+/**
+ * Renders failed tests into the issue description within a fixed size
+ * budget.
+ *
+ * Error details of a single test are cut to a per-test cap. Once the
+ * description would outgrow the budget, the remaining failures are only
+ * counted, together with the test classes failing most often among them,
+ * and summarized in a final line. The classes are tracked with a fixed
+ * number of counters (the space-saving algorithm), so the memory used does
+ * not depend on how many tests failed. Output only depends on the order of
+ * the failures, which makes it deterministic.
+ */
+final class TestResultRenderer {
+
+    /**
+     * Room kept free for the summary of omitted failures.
+     */
+    private static final int SUMMARY_RESERVE = 512;
+
+    private static final int TOP_CLASSES = 5;
+
+    private final StringBuilder out = new StringBuilder();
+
+    private final int maxChars;
+
+    private final int maxDetailChars;
+
+    private final String lineSeparator;
+
+    private int omitted;
+
+    private final String[] topClasses = new String[TOP_CLASSES * 2];
+
+    private final int[] topCounts = new int[TOP_CLASSES * 2];
+
+    /**
+     * @param maxChars budget of the whole rendering, in characters
+     * @param maxDetailChars cap of the error details of one test, in characters
+     */
+    TestResultRenderer(int maxChars, int maxDetailChars, String lineSeparator) {
+        this.maxChars = maxChars;
+        this.maxDetailChars = maxDetailChars;
+        this.lineSeparator = lineSeparator;
+    }
+
+    void appendResult(String displayName, String url, int totalCount, int failCount,
+                      List<CaseResult> failedTests) {
+        if (appendFailures(header(displayName, url, totalCount, failCount), failedTests)) {
+            out.append(lineSeparator);
+        }
+    }
+
+    /**
+     * Renders only the tests that started failing since the previous build.
+     * The tests that keep failing are counted, the fixed ones listed by name.
+     */
+    void appendChanges(String displayName, String url, int totalCount, int failCount, TestResultDiff diff) {
+        String header = header(displayName, url, totalCount, failCount)
+                        + diff.newFailures.size() + " new, " + diff.stillFailing + " still failing, "
+                        + diff.fixed.size() + " fixed" + lineSeparator + lineSeparator;
+        if (!appendFailures(header, diff.newFailures)) {
+            return;
+        }
+        String fixedHeader = "h3. Fixed" + lineSeparator + lineSeparator;
+        if (!diff.fixed.isEmpty() && fits(fixedHeader.length())) {
+            out.append(fixedHeader);
+            int listed = 0;
+            for (String name : diff.fixed) {
+                if (!fits(2 + name.length() + lineSeparator.length())) {
+                    break;
+                }
+                out.append("* ").append(name).append(lineSeparator);
+                listed++;
+            }
+            if (listed < diff.fixed.size()) {
+                out.append("... and ").append(diff.fixed.size() - listed).append(" more")
+                   .append(lineSeparator);
+            }
+        }
+        out.append(lineSeparator);
+    }
+
+    private String header(String displayName, String url, int totalCount, int failCount) {
+        return "h2. \"" + displayName + "\":" + url + lineSeparator + lineSeparator
+               + totalCount + " tests and " + failCount + " failures" + lineSeparator;
+    }
+
+    /**
+     * Returns false if the header did not fit and nothing was rendered.
+     */
+    private boolean appendFailures(String header, List<CaseResult> failedTests) {
+        if (omitted > 0 || !fits(header.length())) {
+            for (CaseResult fail : failedTests) {
+                omit(fail);
+            }
+            return false;
+        }
+        out.append(header);
+
+        for (CaseResult fail : failedTests) {
+            if (omitted > 0) {
+                omit(fail);
+                continue;
+            }
+            String details = String.valueOf(fail.getErrorDetails());
+            if (details.length() > maxDetailChars) {
+                details = details.substring(0, maxDetailChars) + "...";
+            }
+            String name = fail.getClassName() + "." + fail.getDisplayName();
+            int length = 2 + name.length() + 5 + details.length() + 6 + 3 * lineSeparator.length();
+            if (!fits(length)) {
+                omit(fail);
+                continue;
+            }
+            out.append("* ").append(name).append(lineSeparator);
+            out.append("<pre>").append(lineSeparator);
+            out.append(details);
+            out.append("</pre>").append(lineSeparator);
+            out.append(lineSeparator);
+        }
+        return true;
+    }
+
+    private boolean fits(int length) {
+        return out.length() + length + SUMMARY_RESERVE <= maxChars;
+    }
+
+    private void omit(CaseResult fail) {
+        omitted++;
+        countClass(fail.getClassName());
+    }
+
+    /**
+     * Space-saving count: a class not tracked yet replaces the one with the
+     * lowest count and inherits that count.
+     */
+    private void countClass(String className) {
+        int min = 0;
+        for (int i = 0; i < topClasses.length; i++) {
+            if (topClasses[i] == null) {
+                topClasses[i] = className;
+                topCounts[i] = 1;
+                return;
+            }
+            if (topClasses[i].equals(className)) {
+                topCounts[i]++;
+                return;
+            }
+            if (topCounts[i] < topCounts[min]) {
+                min = i;
+            }
+        }
+        topClasses[min] = className;
+        topCounts[min]++;
+    }
+
+    @Override
+    public String toString() {
+        if (omitted == 0) {
+            return out.toString();
+        }
+        StringBuilder summary = new StringBuilder(out);
+        summary.append("+").append(omitted).append(" more failures");
+        boolean[] used = new boolean[topClasses.length];
+        for (int n = 0; n < TOP_CLASSES; n++) {
+            int best = -1;
+            for (int i = 0; i < topClasses.length; i++) {
+                if (topClasses[i] == null || used[i]) {
+                    continue;
+                }
+                if (best < 0 || topCounts[i] > topCounts[best]
+                        || (topCounts[i] == topCounts[best] && topClasses[i].compareTo(topClasses[best]) < 0)) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            used[best] = true;
+            summary.append(n == 0 ? ", top classes by count: " : ", ");
+            summary.append(topClasses[best]).append(" (").append(topCounts[best]).append(")");
+        }
+        summary.append(lineSeparator).append(lineSeparator);
+        return summary.toString();
+    }
+}
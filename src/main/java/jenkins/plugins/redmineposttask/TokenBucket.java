@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+/**
+ * Token bucket limiting the request rate to a Redmine site. The bucket
+ * holds up to one second worth of tokens, so short bursts are allowed.
+ */
+final class TokenBucket {
+
+    private final double ratePerMilli;
+
+    private final double capacity;
+
+    private double tokens;
+
+    private long refilledAt;
+
+    TokenBucket(int requestsPerSecond) {
+        this.ratePerMilli = requestsPerSecond / 1000.0;
+        this.capacity = Math.max(1, requestsPerSecond);
+        this.tokens = capacity;
+        this.refilledAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes a token, waiting at most {@code maxWait} milliseconds for one.
+     * Returns false if no token became available in time.
+     */
+    boolean acquire(long maxWait) throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            refill();
+            if (tokens >= 1) {
+                tokens--;
+                return true;
+            }
+            wait = (long) Math.ceil((1 - tokens) / ratePerMilli);
+            if (wait > maxWait) {
+                return false;
+            }
+            // reserve the token now so concurrent callers queue up behind us
+            tokens--;
+        }
+        Thread.sleep(wait);
+        return true;
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerMilli);
+        refilledAt = now;
+    }
+}
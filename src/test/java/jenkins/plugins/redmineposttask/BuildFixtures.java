@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tasks.junit.JUnitResultArchiver;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+/**
+ * Failed builds and a Redmine site for the tests that run
+ * {@link RedminePostTask#perform} against a {@link RedmineStub}.
+ */
+final class BuildFixtures {
+
+    static final String SITE = "stub";
+
+    private BuildFixtures() {
+    }
+
+    /**
+     * Makes the stub the only Redmine site.
+     */
+    static RedmineSite useStub(JenkinsRule j, RedmineStub stub, int requestsPerSecond) throws IOException {
+        RedmineSite site = new RedmineSite(SITE, stub.getUrl(), "stub-key", "test", 0, requestsPerSecond);
+        j.jenkins.getDescriptorByType(RedminePostTask.DescriptorImpl.class).setSites(site);
+        return site;
+    }
+
+    /**
+     * Returns a task posting the default subject and description to the stub.
+     */
+    static RedminePostTask task(boolean async) {
+        return new RedminePostTask(SITE, "", "", false, async, false, 0, 0, false, 0, false, false, null,
+                                   null, 0);
+    }
+
+    /**
+     * Runs a job that fails with the given number of failed tests and lines
+     * of console output, and returns its builds.
+     */
+    static List<FreeStyleBuild> failedBuilds(JenkinsRule j, String jobName, int builds, int failedTests,
+                                             int logLines) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject(jobName);
+        project.getBuildersList().add(new FailingBuilder(failedTests, logLines));
+        project.getPublishersList().add(new JUnitResultArchiver("TEST-*.xml"));
+        List<FreeStyleBuild> list = new ArrayList<FreeStyleBuild>();
+        for (int i = 0; i < builds; i++) {
+            list.add(j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0).get()));
+        }
+        return list;
+    }
+
+    /**
+     * Returns the default subject of the build's post.
+     */
+    static String subjectOf(AbstractBuild<?, ?> build) {
+        return build.getProject().getName() + " " + build.getDisplayName() + " " + build.getResult();
+    }
+
+    /**
+     * Writes a JUnit report with failed tests and some console output, then
+     * fails the build.
+     */
+    private static final class FailingBuilder extends TestBuilder {
+
+        private final int failedTests;
+
+        private final int logLines;
+
+        FailingBuilder(int failedTests, int logLines) {
+            this.failedTests = failedTests;
+            this.logLines = logLines;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                throws InterruptedException, IOException {
+            PrintStream logger = listener.getLogger();
+            for (int i = 0; i < logLines; i++) {
+                logger.println("[INFO] " + i + " Compiling 42 source files to " + build.getWorkspace());
+            }
+            logger.println("[ERROR] BUILD FAILURE");
+
+            StringBuilder report = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            report.append("<testsuite name=\"fixture\" tests=\"").append(failedTests)
+                  .append("\" failures=\"").append(failedTests).append("\">\n");
+            for (int i = 0; i < failedTests; i++) {
+                report.append("  <testcase classname=\"org.example.Suite").append(i % 7)
+                      .append("Test\" name=\"test").append(i).append("\" time=\"0.01\">\n");
+                report.append("    <failure message=\"expected:&lt;").append(i).append("&gt; but was:&lt;")
+                      .append(i + 1).append("&gt;\">java.lang.AssertionError: expected ").append(i)
+                      .append("\n\tat org.example.Suite").append(i % 7).append("Test.test").append(i)
+                      .append("(Suite").append(i % 7).append("Test.java:").append(i + 10)
+                      .append(")</failure>\n");
+                report.append("  </testcase>\n");
+            }
+            report.append("</testsuite>\n");
+            FilePath workspace = build.getWorkspace();
+            workspace.child("TEST-fixture.xml").write(report.toString(), "UTF-8");
+            return false;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @After
+    public void tearDown() {
+        CircuitBreaker.retainAll(Collections.<String>emptyList());
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60000);
+        fail(breaker, 2);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        fail(breaker, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allow());
+    }
+
+    @Test
+    public void successResetsTheFailureCount() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60000);
+        fail(breaker, 2);
+        assertTrue(breaker.allow());
+        breaker.onSuccess();
+        fail(breaker, 2);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void ignoredCallsDoNotCount() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 60000);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(breaker.allow());
+            breaker.onIgnored();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenLetsOneTrialThrough() {
+        // opens for no time at all, so the next call is the trial
+        CircuitBreaker breaker = new CircuitBreaker(1, 0);
+        fail(breaker, 1);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allow());
+        assertFalse("a second trial", breaker.allow());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allow());
+        assertTrue(breaker.allow());
+    }
+
+    @Test
+    public void failedTrialReopens() {
+        CircuitBreaker breaker = new CircuitBreaker(5, 0);
+        fail(breaker, 5);
+        assertTrue(breaker.allow());
+        breaker.onFailure();
+        // one failure is enough when half-open
+        assertTrue(breaker.allow());
+        assertFalse(breaker.allow());
+    }
+
+    @Test
+    public void ignoredTrialIsGivenBack() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0);
+        fail(breaker, 1);
+        assertTrue(breaker.allow());
+        breaker.onIgnored();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue("the next trial", breaker.allow());
+    }
+
+    @Test
+    public void stateIsKeptBySiteName() throws Exception {
+        RedmineSite site = new RedmineSite("a", new URL("http://redmine.example.org/"), "key", "project", 0, 0);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(site.getCircuitBreaker().allow());
+            site.getCircuitBreaker().onFailure();
+        }
+        assertEquals("OPEN", site.getCircuitState());
+
+        // saving the configuration creates the site again
+        RedmineSite saved = new RedmineSite("a", new URL("http://redmine.example.org/"), "key", "project", 0, 0);
+        assertSame(site.getCircuitBreaker(), saved.getCircuitBreaker());
+        assertEquals("OPEN", saved.getCircuitState());
+        RedmineSite other = new RedmineSite("b", new URL("http://redmine.example.org/"), "key", "project", 0, 0);
+        assertEquals("CLOSED", other.getCircuitState());
+
+        CircuitBreaker.retainAll(Arrays.asList("b"));
+        assertSame(other.getCircuitBreaker(), CircuitBreaker.get("b"));
+        assertNotSame(site.getCircuitBreaker(), CircuitBreaker.get("a"));
+
+        RedmineSite unnamed = new RedmineSite(null, new URL("http://redmine.example.org/"), "key", "project", 0, 0);
+        assertEquals("CLOSED", unnamed.getCircuitState());
+        assertNotSame(unnamed.getCircuitBreaker(), CircuitBreaker.get(null));
+    }
+
+    private static void fail(CircuitBreaker breaker, int times) {
+        for (int i = 0; i < times; i++) {
+            assertTrue(breaker.allow());
+            breaker.onFailure();
+        }
+    }
+}
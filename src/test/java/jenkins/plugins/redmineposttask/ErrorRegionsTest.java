@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ErrorRegionsTest {
+
+    private static final MarkerMatcher MATCHER = MarkerMatcher.compile("ERROR");
+
+    @Test
+    public void noMatchIsEmpty() throws IOException {
+        assertRegions(lines(10, -1), 2, 100, 1000);
+    }
+
+    @Test
+    public void contextAroundOneHit() throws IOException {
+        assertRegions(lines(10, 5), 2, 100, 1000, "3", "4", "5 ERROR", "6", "7");
+        assertRegions(lines(10, 0), 2, 100, 1000, "0 ERROR", "1", "2");
+        assertRegions(lines(10, 9), 2, 100, 1000, "7", "8", "9 ERROR");
+        assertRegions(lines(10, 5), 0, 100, 1000, "5 ERROR");
+    }
+
+    @Test
+    public void distantHitsAreSeparated() throws IOException {
+        assertRegions(lines(10, 2, 8), 1, 100, 1000, "1", "2 ERROR", "3", "...", "7", "8 ERROR", "9");
+    }
+
+    @Test
+    public void closeHitsMerge() throws IOException {
+        assertRegions(lines(10, 3, 5), 1, 100, 1000, "2", "3 ERROR", "4", "5 ERROR", "6");
+        // the regions touch, nothing was left out between them
+        assertRegions(lines(10, 2, 5), 1, 100, 1000, "1", "2 ERROR", "3", "4", "5 ERROR", "6");
+        assertRegions(lines(10, 4, 5), 2, 100, 1000, "2", "3", "4 ERROR", "5 ERROR", "6", "7");
+    }
+
+    @Test
+    public void lineBudget() throws IOException {
+        String log = lines(10, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+        assertRegions(log, 0, 3, 1000, "0 ERROR", "1 ERROR", "2 ERROR", "... 7 more matching lines");
+    }
+
+    @Test
+    public void byteBudget() throws IOException {
+        // every line takes 8 bytes with its newline
+        String log = lines(10, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+        assertRegions(log, 0, 100, 16, "0 ERROR", "1 ERROR", "... 8 more matching lines");
+        assertRegions(log, 0, 100, 15, "0 ERROR", "... 9 more matching lines");
+    }
+
+    @Test
+    public void budgetRunningOutInTheContext() throws IOException {
+        assertRegions(lines(10, 5), 3, 2, 1000, "2", "3", "... 1 more matching lines");
+    }
+
+    @Test
+    public void lineEndings() throws IOException {
+        assertRegions("a\r\nERROR\r\nb", 1, 100, 1000, "a", "ERROR", "b");
+        assertRegions("a\nb\nERROR", 1, 100, 1000, "b", "ERROR");
+    }
+
+    @Test
+    public void longLinesAreCut() throws IOException {
+        StringBuilder line = new StringBuilder("ERROR ");
+        while (line.length() < 10000) {
+            line.append('x');
+        }
+        List<String> regions = ErrorRegions.scan(new StringReader(line + "\nnext\n"), MATCHER, 1, 100, 100000);
+        assertEquals(2, regions.size());
+        assertEquals(line.substring(0, 4096), regions.get(0));
+        assertEquals("next", regions.get(1));
+    }
+
+    /**
+     * Returns lines "0" to "count - 1", the given ones followed by " ERROR".
+     */
+    private static String lines(int count, int... hits) {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            log.append(i);
+            for (int hit : hits) {
+                if (hit == i) {
+                    log.append(" ERROR");
+                }
+            }
+            log.append('\n');
+        }
+        return log.toString();
+    }
+
+    private static void assertRegions(String log, int contextLines, int maxLines, int maxBytes,
+                                      String... expected) throws IOException {
+        assertEquals(Arrays.asList(expected),
+                     ErrorRegions.scan(new StringReader(log), MATCHER, contextLines, maxLines, maxBytes));
+    }
+}
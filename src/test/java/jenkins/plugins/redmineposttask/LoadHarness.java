@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.Launcher;
+import hudson.model.FreeStyleBuild;
+import hudson.model.StreamBuildListener;
+import hudson.util.NullStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Runs {@link RedminePostTask#perform} for simulated failed builds against a
+ * {@link RedmineStub} and reports throughput, latency percentiles and how
+ * long build executors were blocked, first with synchronous posts and then
+ * through the async queue.
+ *
+ * A job with failed tests is built a few times in a {@link JenkinsRule},
+ * then perform is called on those builds from a pool of threads standing in
+ * for the executors, everything below the build step being real. In async
+ * mode the run lasts until the queue has drained, so its throughput is the
+ * queue's while the executor figures show what the builds saw.
+ *
+ * Not part of the regular test run. Options are system properties:
+ * <pre>
+ * mvn test -Dtest=LoadHarness -Dload.builds=5000 -Dload.executors=16 \
+ *     -Dload.latency=50 -Dload.jitter=50 -Dload.errors=0.01
+ * </pre>
+ */
+public class LoadHarness {
+
+    private static final Map<String, String> DEFAULTS = new TreeMap<String, String>();
+
+    static {
+        DEFAULTS.put("builds", "2000");
+        DEFAULTS.put("warmup", "200");
+        DEFAULTS.put("executors", "8");
+        DEFAULTS.put("distinctBuilds", "50");
+        DEFAULTS.put("failures", "50");
+        DEFAULTS.put("logLines", "1000");
+        DEFAULTS.put("latency", "20");
+        DEFAULTS.put("jitter", "20");
+        DEFAULTS.put("errors", "0");
+        DEFAULTS.put("stubRate", "0");
+        DEFAULTS.put("siteRate", "0");
+        DEFAULTS.put("maxConnections", "20");
+    }
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void load() throws Exception {
+        Map<String, String> options = new TreeMap<String, String>();
+        for (Map.Entry<String, String> option : DEFAULTS.entrySet()) {
+            options.put(option.getKey(), System.getProperty("load." + option.getKey(), option.getValue()));
+        }
+        int builds = Integer.parseInt(options.get("builds"));
+        int warmup = Integer.parseInt(options.get("warmup"));
+        int executors = Integer.parseInt(options.get("executors"));
+
+        RedmineStub stub = new RedmineStub(Math.max(executors * 2, 8));
+        stub.setLatency(Integer.parseInt(options.get("latency")), Integer.parseInt(options.get("jitter")));
+        stub.setErrorRate(Double.parseDouble(options.get("errors")));
+        stub.setRequestsPerSecond(Integer.parseInt(options.get("stubRate")));
+        stub.start();
+        RedmineClientRegistry.configure(Integer.parseInt(options.get("maxConnections")),
+                                        RedmineClientRegistry.DEFAULT_IDLE_TIMEOUT);
+        try {
+            RedmineSite site = BuildFixtures.useStub(j, stub, Integer.parseInt(options.get("siteRate")));
+            List<FreeStyleBuild> failed = BuildFixtures.failedBuilds(j, "load",
+                    Integer.parseInt(options.get("distinctBuilds")), Integer.parseInt(options.get("failures")),
+                    Integer.parseInt(options.get("logLines")));
+            System.out.println("Options: " + options);
+
+            for (boolean async : new boolean[] {false, true}) {
+                RedminePostTask task = BuildFixtures.task(async);
+                run(task, failed, warmup, executors);
+                long requestsBefore = stub.getRequests();
+                int issuesBefore = stub.getIssueCount();
+                Result result = run(task, failed, builds, executors);
+
+                System.out.println(async ? "Async posts:" : "Synchronous posts:");
+                result.print(builds, executors);
+                System.out.println("Stub: " + (stub.getRequests() - requestsBefore) + " requests, "
+                                   + stub.getErrors() + " injected errors, " + stub.getThrottled()
+                                   + " throttled, " + stub.getUploadedBytes() + " bytes uploaded, "
+                                   + (stub.getIssueCount() - issuesBefore) + " issues");
+            }
+            System.out.println("Circuit breaker: " + site.getCircuitState());
+            System.out.println("Site metrics: " + SiteMetrics.get(site.name).toJSON());
+        } finally {
+            RedmineClientRegistry.retireAll();
+            stub.stop();
+        }
+    }
+
+    private Result run(final RedminePostTask task, final List<FreeStyleBuild> failed, int builds, int executors)
+            throws InterruptedException {
+        final Result result = new Result(builds);
+        final Launcher launcher = j.createLocalLauncher();
+        ExecutorService pool = Executors.newFixedThreadPool(executors);
+        long start = System.nanoTime();
+        for (int i = 0; i < builds; i++) {
+            final FreeStyleBuild build = failed.get(i % failed.size());
+            pool.execute(new Runnable() {
+                public void run() {
+                    long begin = System.nanoTime();
+                    try {
+                        if (task.perform(build, launcher, new StreamBuildListener(new NullStream()))) {
+                            result.succeeded.incrementAndGet();
+                        } else {
+                            result.failed("perform returned false");
+                        }
+                    } catch (Exception ex) {
+                        result.failed(ex.getClass().getSimpleName());
+                    }
+                    result.record(System.nanoTime() - begin);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        // async posts are only done once the queue is empty
+        while (RedminePostQueue.get().size() > 0) {
+            Thread.sleep(10);
+        }
+        result.wallNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static final class Result {
+
+        private final long[] latencies;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        final AtomicInteger succeeded = new AtomicInteger();
+
+        private final AtomicLong blockedNanos = new AtomicLong();
+
+        private final Map<String, Integer> failures = new TreeMap<String, Integer>();
+
+        long wallNanos;
+
+        Result(int builds) {
+            latencies = new long[builds];
+        }
+
+        void record(long nanos) {
+            latencies[count.getAndIncrement()] = nanos;
+            blockedNanos.addAndGet(nanos);
+        }
+
+        synchronized void failed(String reason) {
+            Integer n = failures.get(reason);
+            failures.put(reason, n == null ? 1 : n + 1);
+        }
+
+        void print(int builds, int executors) {
+            long[] sorted = Arrays.copyOf(latencies, count.get());
+            Arrays.sort(sorted);
+            double seconds = wallNanos / 1e9;
+            System.out.printf("Builds: %d in %.2fs, %.1f builds/s, %d succeeded, failures %s%n",
+                              builds, seconds, builds / seconds, succeeded.get(), failures);
+            System.out.printf("Perform ms: p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                              percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                              percentile(sorted, 99.9), sorted.length > 0 ? sorted[sorted.length - 1] / 1e6 : 0);
+            System.out.printf("Executors blocked: %.1fs in total, %.1f ms per build, %.0f%% of %d executors%n",
+                              blockedNanos.get() / 1e9, blockedNanos.get() / 1e6 / Math.max(sorted.length, 1),
+                              100.0 * blockedNanos.get() / (wallNanos * (double) executors), executors);
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class LogTailTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void lastLines() throws IOException {
+        assertTail("1\n2\n3\n4\n", 2, 100, "3", "4");
+        assertTail("1\n2\n3\n4", 2, 100, "3", "4");
+        assertTail("1\n2\n", 10, 100, "1", "2");
+        assertTail("1\n\n", 10, 100, "1", "");
+        assertTail("", 10, 100);
+    }
+
+    @Test
+    public void carriageReturnsAreStripped() throws IOException {
+        assertTail("a\r\nb\r\n", 10, 100, "a", "b");
+    }
+
+    @Test
+    public void byteBudgetKeepsWholeLines() throws IOException {
+        // 9 bytes for two lines and the newline between them
+        assertTail("aaaa\nbbbb\n", 10, 9, "aaaa", "bbbb");
+        assertTail("aaaa\nbbbb\n", 10, 8, "bbbb");
+        assertTail("aaaa\nbbbb\ncccc", 10, 10, "bbbb", "cccc");
+        assertTail("aaaa\nbbbb\ncccc", 10, 9, "bbbb", "cccc");
+        assertTail("aaaa\nbbbb\ncccc", 10, 5, "cccc");
+        assertTail("aaaa\nbbbb\ncccc", 10, 4, "cccc");
+    }
+
+    @Test
+    public void longLastLineIsCut() throws IOException {
+        assertTail(repeat('x', 100), 10, 10, repeat('x', 10));
+        assertTail("a\n" + repeat('x', 100) + "\n", 10, 10, repeat('x', 10));
+        assertTail(repeat('x', 100) + "\nab", 10, 10, "ab");
+    }
+
+    @Test
+    public void linesSpanningBlocks() throws IOException {
+        StringBuilder log = new StringBuilder();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++) {
+            log.append("line ").append(i).append('\n');
+            if (i >= 4000) {
+                expected.add("line " + i);
+            }
+        }
+        assertTail(log.toString(), 1000, Integer.MAX_VALUE, expected.toArray(new String[expected.size()]));
+    }
+
+    @Test
+    public void bothDirectionsAgree() throws IOException {
+        String log = "first\n\nsecond line\r\n" + repeat('y', 50) + "\nz\nlast one\n";
+        for (int maxLines = 1; maxLines <= 8; maxLines++) {
+            for (int maxBytes = 1; maxBytes <= log.length() + 1; maxBytes++) {
+                List<String> backward = LogTail.readBackward(write(log), UTF8, maxLines, maxBytes);
+                List<String> forward = LogTail.readForward(new BufferedReader(new StringReader(log)), maxLines,
+                                                           maxBytes);
+                assertEquals(maxLines + " lines, " + maxBytes + " bytes", backward, forward);
+            }
+        }
+    }
+
+    private void assertTail(String log, int maxLines, int maxBytes, String... expected) throws IOException {
+        List<String> lines = Arrays.asList(expected);
+        assertEquals("backward", lines, LogTail.readBackward(write(log), UTF8, maxLines, maxBytes));
+        assertEquals("forward", lines,
+                     LogTail.readForward(new BufferedReader(new StringReader(log)), maxLines, maxBytes));
+    }
+
+    private File write(String text) throws IOException {
+        File file = tmp.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.util.FormValidation;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LoginCheckTest {
+
+    @Test
+    public void successIsCached() {
+        Counting check = new Counting(FormValidation.ok("OK."));
+        FormValidation first = LoginCheck.check("successIsCached", check);
+        assertSame(first, LoginCheck.check("successIsCached", check));
+        assertEquals(1, check.calls.get());
+
+        // other settings are checked on their own
+        LoginCheck.check("successIsCached2", check);
+        assertEquals(2, check.calls.get());
+    }
+
+    @Test
+    public void failuresAbsorbBursts() {
+        Counting check = new Counting(FormValidation.error("wrong key"));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(FormValidation.Kind.ERROR, LoginCheck.check("failuresAbsorbBursts", check).kind);
+        }
+        assertEquals(1, check.calls.get());
+    }
+
+    @Test
+    public void exceptionBecomesAnError() {
+        FormValidation result = LoginCheck.check("exceptionBecomesAnError", new Callable<FormValidation>() {
+            public FormValidation call() throws IOException {
+                throw new IOException("refused");
+            }
+        });
+        assertEquals(FormValidation.Kind.ERROR, result.kind);
+        assertTrue(result.getMessage(), result.getMessage().contains("refused"));
+    }
+
+    @Test
+    public void concurrentChecksShareOneRequest() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch answer = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<FormValidation> check = new Callable<FormValidation>() {
+            public FormValidation call() throws InterruptedException {
+                calls.incrementAndGet();
+                started.countDown();
+                answer.await();
+                return FormValidation.ok("OK.");
+            }
+        };
+        final AtomicReference<FormValidation> first = new AtomicReference<FormValidation>();
+        Thread running = new Thread() {
+            @Override
+            public void run() {
+                first.set(LoginCheck.check("concurrentChecksShareOneRequest", check));
+            }
+        };
+        running.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        final AtomicReference<FormValidation> second = new AtomicReference<FormValidation>();
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                second.set(LoginCheck.check("concurrentChecksShareOneRequest", check));
+            }
+        };
+        waiting.start();
+        for (int i = 0; i < 1000 && waiting.getState() != Thread.State.TIMED_WAITING; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("waits for the running check", Thread.State.TIMED_WAITING, waiting.getState());
+        answer.countDown();
+        running.join(10000);
+        waiting.join(10000);
+
+        assertEquals(1, calls.get());
+        assertEquals(FormValidation.Kind.OK, first.get().kind);
+        assertSame(first.get(), second.get());
+    }
+
+    @Test
+    public void projectIsLookedUpOnRedmine() throws Exception {
+        RedmineStub stub = new RedmineStub(2);
+        stub.start();
+        try {
+            String url = stub.getUrl().toString();
+            assertEquals(FormValidation.Kind.OK, LoginCheck.check(url, "key", "test").kind);
+            stub.setErrorRate(1);
+            assertEquals(FormValidation.Kind.ERROR, LoginCheck.check(url, "key", "other").kind);
+            // cached, Redmine is not asked again
+            long requests = stub.getRequests();
+            assertEquals(FormValidation.Kind.OK, LoginCheck.check(url, "key", "test").kind);
+            assertEquals(requests, stub.getRequests());
+        } finally {
+            stub.stop();
+        }
+    }
+
+    private static final class Counting implements Callable<FormValidation> {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        private final FormValidation result;
+
+        Counting(FormValidation result) {
+            this.result = result;
+        }
+
+        public FormValidation call() {
+            calls.incrementAndGet();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MarkerMatcherTest {
+
+    @Test
+    public void findsMarkersAnywhere() {
+        MarkerMatcher matcher = MarkerMatcher.compile(ErrorRegions.DEFAULT_MARKERS);
+        assertTrue(matches(matcher, "[ERROR] Failed to execute goal"));
+        assertTrue(matches(matcher, "java.lang.IllegalStateException: boom"));
+        assertTrue(matches(matcher, "Foo.java:12: error: cannot find symbol"));
+        assertTrue(matches(matcher, "BUILD FAILURE"));
+        assertFalse(matches(matcher, "[INFO] BUILD SUCCESS"));
+        assertFalse(matches(matcher, "error without a colon"));
+        assertFalse(matches(matcher, ""));
+    }
+
+    @Test
+    public void isCaseSensitive() {
+        MarkerMatcher matcher = MarkerMatcher.compile("ERROR");
+        assertFalse(matches(matcher, "error"));
+        assertFalse(matches(matcher, "Error"));
+    }
+
+    @Test
+    public void followsFailureLinks() {
+        MarkerMatcher matcher = MarkerMatcher.compile("he\nshe\nhis\nhers");
+        assertTrue(matches(matcher, "ushers"));
+        assertTrue(matches(matcher, "ahis"));
+        assertFalse(matches(matcher, "hi s"));
+
+        matcher = MarkerMatcher.compile("abcd\nbc");
+        assertTrue(matches(matcher, "abce"));
+        assertFalse(matches(matcher, "abd"));
+
+        // a failed partial match must not swallow the start of the real one
+        matcher = MarkerMatcher.compile("ERROR");
+        assertTrue(matches(matcher, "ERRERROR"));
+        assertTrue(matches(matcher, "EERROR"));
+        assertFalse(matches(matcher, "ERRO R"));
+    }
+
+    @Test
+    public void nonAsciiMarkers() {
+        MarkerMatcher matcher = MarkerMatcher.compile("\u30a8\u30e9\u30fc\nFEHLER");
+        assertTrue(matches(matcher, "\u30d3\u30eb\u30c9\u30a8\u30e9\u30fc\u3067\u3059"));
+        assertTrue(matches(matcher, "FEHLER: \u00fcbersetzung"));
+        assertFalse(matches(matcher, "\u30a8\u30e9 \u30fc"));
+        assertFalse(matches(matcher, "\u00fc\u00e4\u00f6"));
+    }
+
+    @Test
+    public void blankLinesAndSpacesAreIgnored() {
+        MarkerMatcher matcher = MarkerMatcher.compile("\r\n  FATAL  \r\n\r\n");
+        assertTrue(matches(matcher, "xFATALx"));
+        assertFalse(matches(matcher, "  "));
+        assertFalse(matches(MarkerMatcher.compile(""), "anything at all"));
+    }
+
+    private static boolean matches(MarkerMatcher matcher, String line) {
+        int state = 0;
+        for (int i = 0; i < line.length(); i++) {
+            state = matcher.next(state, line.charAt(i));
+            if (matcher.isMatch(state)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
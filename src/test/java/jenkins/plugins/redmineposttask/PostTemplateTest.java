@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PostTemplateTest {
+
+    @Test
+    public void plainTextAsksForNothing() throws IOException {
+        Values values = new Values();
+        assertEquals("no placeholders here", PostTemplate.compile("no placeholders here").render(values));
+        assertEquals("", PostTemplate.compile("").render(values));
+        assertEquals(0, values.asked.size());
+    }
+
+    @Test
+    public void replacesVariables() throws IOException {
+        Values values = new Values().put("JOB_NAME", "core").put("BUILD_NUMBER", "42");
+        assertEquals("core #42 failed", PostTemplate.compile("${JOB_NAME} #${BUILD_NUMBER} failed").render(values));
+        assertEquals("core42", PostTemplate.compile("${JOB_NAME}${BUILD_NUMBER}").render(values));
+        assertEquals("[core]", PostTemplate.compile("[${JOB_NAME}]").render(values));
+    }
+
+    @Test
+    public void asksOnlyForVariablesInTheTemplate() throws IOException {
+        Values values = new Values().put("A", "1").put("B", "2");
+        PostTemplate.compile("${A} and ${A}").render(values);
+        assertEquals("[A, A]", values.asked.toString());
+    }
+
+    @Test
+    public void unknownVariablesStay() throws IOException {
+        assertEquals("x ${NOPE} y", PostTemplate.compile("x ${NOPE} y").render(new Values()));
+    }
+
+    @Test
+    public void dotsAndUnderscores() throws IOException {
+        Values values = new Values().put("env.HOME_DIR", "/home/ci");
+        assertEquals("/home/ci/x", PostTemplate.compile("${env.HOME_DIR}/x").render(values));
+    }
+
+    @Test
+    public void notPlaceholders() throws IOException {
+        Values values = new Values().put("A", "1");
+        assertEquals("${}", PostTemplate.compile("${}").render(values));
+        assertEquals("${not a name} 1", PostTemplate.compile("${not a name} ${A}").render(values));
+        assertEquals("1 ${A", PostTemplate.compile("${A} ${A").render(values));
+        assertEquals("$A {A} $", PostTemplate.compile("$A {A} $").render(values));
+        assertEquals("[A, A]", values.asked.toString());
+    }
+
+    @Test
+    public void valuesAreNotExpandedAgain() throws IOException {
+        Values values = new Values().put("A", "${B}").put("B", "2");
+        assertEquals("${B}", PostTemplate.compile("${A}").render(values));
+    }
+
+    private static final class Values implements PostTemplate.Resolver {
+
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        final List<String> asked = new ArrayList<String>();
+
+        Values put(String name, String value) {
+            values.put(name, value);
+            return this;
+        }
+
+        public String resolve(String name) {
+            asked.add(name);
+            return values.get(name);
+        }
+    }
+}
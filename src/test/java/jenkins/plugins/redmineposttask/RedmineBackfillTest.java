@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RedmineBackfillTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private RedmineStub stub;
+
+    @Before
+    public void setUp() throws Exception {
+        stub = new RedmineStub(4);
+        stub.start();
+        // a breaker opened by an earlier test would stop the runs
+        CircuitBreaker.retainAll(Collections.<String>emptyList());
+        BuildFixtures.useStub(j, stub, 0);
+    }
+
+    @After
+    public void tearDown() {
+        RedmineClientRegistry.retireAll();
+        stub.stop();
+    }
+
+    @Test
+    public void resultThresholdSelectsTheBuilds() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("job");
+        ResultBuilder builder = new ResultBuilder();
+        project.getBuildersList().add(builder);
+        for (Result result : new Result[] {Result.FAILURE, Result.UNSTABLE, Result.SUCCESS, Result.ABORTED}) {
+            builder.result = result;
+            j.assertBuildStatus(result, project.scheduleBuild2(0).get());
+        }
+
+        RedmineBackfill failures = run(project, Result.FAILURE, 0, Long.MAX_VALUE, 1, 100);
+        assertEquals(4, failures.scanned.get());
+        assertEquals(1, failures.selected.get());
+        assertEquals(1, failures.posted.get());
+        assertEquals(1, stub.getIssueCount());
+        assertEquals(BuildFixtures.subjectOf(project.getBuildByNumber(1)), stub.getSubject(1));
+
+        RedmineBackfill unstable = run(project, Result.UNSTABLE, 0, Long.MAX_VALUE, 1, 100);
+        assertEquals(2, unstable.selected.get());
+        assertEquals(1, unstable.skipped.get());
+        assertEquals(1, unstable.posted.get());
+        assertEquals(BuildFixtures.subjectOf(project.getBuildByNumber(2)), stub.getSubject(2));
+        assertEquals(0, unstable.failed.get());
+    }
+
+    @Test
+    public void rangeLimitsTheBuilds() throws Exception {
+        List<FreeStyleBuild> builds = BuildFixtures.failedBuilds(j, "job", 4, 1, 1);
+        long from = builds.get(1).getTimeInMillis();
+        long to = builds.get(3).getTimeInMillis();
+        assertTrue(builds.get(0).getTimeInMillis() < from && from < builds.get(2).getTimeInMillis()
+                   && builds.get(2).getTimeInMillis() < to);
+
+        RedmineBackfill backfill = run(builds.get(0).getProject(), Result.FAILURE, from, to, 1, 100);
+        // the newest build is out of range, the oldest ends the walk
+        assertEquals(4, backfill.scanned.get());
+        assertEquals(2, backfill.selected.get());
+        assertEquals(2, backfill.posted.get());
+        assertEquals(BuildFixtures.subjectOf(builds.get(2)), stub.getSubject(1));
+        assertEquals(BuildFixtures.subjectOf(builds.get(1)), stub.getSubject(2));
+        assertEquals(2, stub.getIssueCount());
+    }
+
+    @Test
+    public void postedBuildsAreSkipped() throws Exception {
+        List<FreeStyleBuild> builds = BuildFixtures.failedBuilds(j, "job", 3, 1, 1);
+        builds.get(1).addAction(new RedmineIssueAction(BuildFixtures.SITE, 42));
+
+        RedmineBackfill first = run(builds.get(0).getProject(), Result.FAILURE, 0, Long.MAX_VALUE, 2, 100);
+        assertEquals(3, first.selected.get());
+        assertEquals(1, first.skipped.get());
+        assertEquals(2, first.posted.get());
+        assertEquals(2, stub.getIssueCount());
+
+        // the posts linked the builds to their issues, a second run resumes with nothing left to do
+        RedmineBackfill second = run(builds.get(0).getProject(), Result.FAILURE, 0, Long.MAX_VALUE, 2, 100);
+        assertEquals(3, second.skipped.get());
+        assertEquals(0, second.posted.get());
+        assertEquals(2, stub.getIssueCount());
+    }
+
+    @Test
+    public void runStopsWhenTheCircuitBreakerOpens() throws Exception {
+        List<FreeStyleBuild> builds = BuildFixtures.failedBuilds(j, "job", 12, 1, 1);
+        stub.setErrorRate(1);
+
+        RedmineBackfill backfill = run(builds.get(0).getProject(), Result.FAILURE, 0, Long.MAX_VALUE, 1, 100);
+        assertTrue(backfill.getStopReason(), backfill.getStopReason().contains("circuit breaker is open"));
+        assertTrue("walked on after the breaker opened: " + backfill, backfill.scanned.get() < 12);
+        assertEquals(0, backfill.posted.get());
+        assertEquals(backfill.selected.get(), backfill.failed.get());
+        assertEquals(0, stub.getIssueCount());
+    }
+
+    @Test
+    public void postsAbandonedByACancelCountAsFailed() throws Exception {
+        List<FreeStyleBuild> builds = BuildFixtures.failedBuilds(j, "job", 8, 1, 1);
+        AbstractProject<?, ?> project = builds.get(0).getProject();
+
+        // one post a second, the other workers wait on the throttle
+        assertTrue(RedmineBackfill.start(project, BuildFixtures.task(false), Result.FAILURE, 0, Long.MAX_VALUE,
+                                         4, 1));
+        RedmineBackfill backfill = RedmineBackfill.get(project);
+        for (int i = 0; i < 300 && backfill.posted.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        backfill.cancel();
+        awaitFinished(backfill);
+
+        assertEquals("Cancelled", backfill.getStopReason());
+        assertTrue(backfill.toString(), backfill.posted.get() > 0 && backfill.posted.get() < 8);
+        assertEquals(backfill.toString(), backfill.selected.get(),
+                     backfill.posted.get() + backfill.failed.get());
+    }
+
+    @Test
+    public void finishedRunIsForgottenAfterAWhile() throws Exception {
+        List<FreeStyleBuild> builds = BuildFixtures.failedBuilds(j, "job", 1, 1, 1);
+        AbstractProject<?, ?> project = builds.get(0).getProject();
+        RedmineBackfill backfill = run(project, Result.FAILURE, 0, Long.MAX_VALUE, 1, 100);
+
+        RedmineBackfill.expire(System.currentTimeMillis());
+        assertSame(backfill, RedmineBackfill.get(project));
+        RedmineBackfill.expire(System.currentTimeMillis() + RedmineBackfill.KEEP_FINISHED + 1000);
+        assertNull(RedmineBackfill.get(project));
+    }
+
+    private static RedmineBackfill run(AbstractProject<?, ?> project, Result result, long from, long to,
+                                       int workers, int rate) throws InterruptedException {
+        assertTrue(RedmineBackfill.start(project, BuildFixtures.task(false), result, from, to, workers, rate));
+        RedmineBackfill backfill = RedmineBackfill.get(project);
+        awaitFinished(backfill);
+        return backfill;
+    }
+
+    private static void awaitFinished(RedmineBackfill backfill) throws InterruptedException {
+        for (int i = 0; i < 300 && backfill.isRunning(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse("still running: " + backfill, backfill.isRunning());
+    }
+
+    /**
+     * Ends the build with a given result.
+     */
+    private static final class ResultBuilder extends TestBuilder {
+
+        volatile Result result = Result.SUCCESS;
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+            build.setResult(result);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.net.URL;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RedmineClientRegistryTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @After
+    public void tearDown() {
+        RedmineClientRegistry.retireAll();
+    }
+
+    @Test
+    public void configuredSiteSharesOneClient() throws Exception {
+        RedmineSite site = configure();
+        RedmineClientRegistry.Client first = RedmineClientRegistry.acquire(site);
+        RedmineClientRegistry.Client second = RedmineClientRegistry.acquire(site);
+        assertSame(first, second);
+        RedmineClientRegistry.release(first);
+        RedmineClientRegistry.release(second);
+        assertFalse(first.isClosed());
+        assertSame(first, acquireAndRelease(site));
+    }
+
+    @Test
+    public void retiredClientIsClosedByItsLastLease() throws Exception {
+        RedmineSite site = configure();
+        RedmineClientRegistry.Client leased = RedmineClientRegistry.acquire(site);
+        RedmineClientRegistry.Client idle = acquireAndRelease(configure());
+
+        configure();
+        assertTrue(idle.isClosed());
+        assertFalse("still leased", leased.isClosed());
+        RedmineClientRegistry.release(leased);
+        assertTrue(leased.isClosed());
+    }
+
+    @Test
+    public void replacedSiteGetsAClientOfItsOwn() throws Exception {
+        RedmineSite old = configure();
+        RedmineSite current = configure();
+
+        RedmineClientRegistry.Client stale = RedmineClientRegistry.acquire(old);
+        assertNotSame(stale, acquireAndRelease(current));
+        assertFalse(stale.isClosed());
+        RedmineClientRegistry.release(stale);
+        assertTrue(stale.isClosed());
+
+        // a site that is not configured at all is treated the same
+        RedmineSite unknown = new RedmineSite("unknown", new URL("http://redmine.example.org/"), "key", "project",
+                                              0, 0);
+        assertTrue(acquireAndRelease(unknown).isClosed());
+        assertFalse(acquireAndRelease(current).isClosed());
+    }
+
+    /**
+     * Replaces the configured sites with a new instance of the same site.
+     */
+    private RedmineSite configure() throws Exception {
+        RedmineSite site = new RedmineSite("site", new URL("http://redmine.example.org/"), "key", "project", 0, 0);
+        j.jenkins.getDescriptorByType(RedminePostTask.DescriptorImpl.class).setSites(site);
+        return site;
+    }
+
+    private static RedmineClientRegistry.Client acquireAndRelease(RedmineSite site) {
+        RedmineClientRegistry.Client client = RedmineClientRegistry.acquire(site);
+        RedmineClientRegistry.release(client);
+        return client;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.taskadapter.redmineapi.RedmineException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedmineIssueFutureTest {
+
+    @Test
+    public void completesWithTheIssueNumber() throws Exception {
+        RedmineIssueFuture future = new RedmineIssueFuture();
+        assertFalse(future.isDone());
+        future.set(42);
+        assertTrue(future.isDone());
+        assertEquals(Integer.valueOf(42), future.get());
+        assertEquals(Integer.valueOf(42), future.get(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void failureIsThrownByGet() throws Exception {
+        RedmineIssueFuture future = new RedmineIssueFuture();
+        RedmineException failure = new RedmineException("dropped");
+        future.fail(failure);
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void firstOutcomeWins() throws Exception {
+        RedmineIssueFuture resolved = new RedmineIssueFuture();
+        resolved.set(1);
+        resolved.fail(new RedmineException("late"));
+        resolved.set(2);
+        assertEquals(Integer.valueOf(1), resolved.get());
+
+        RedmineIssueFuture failed = new RedmineIssueFuture();
+        failed.fail(new RedmineException("first"));
+        failed.set(1);
+        try {
+            failed.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("first", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void waitingIsBounded() throws Exception {
+        RedmineIssueFuture future = new RedmineIssueFuture();
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException e) {
+            assertFalse(future.isDone());
+        }
+    }
+
+    @Test
+    public void cannotBeCancelled() {
+        RedmineIssueFuture future = new RedmineIssueFuture();
+        assertFalse(future.cancel(true));
+        assertFalse(future.isCancelled());
+        assertFalse(future.isDone());
+    }
+
+    @Test
+    public void waiterIsWokenByTheOutcome() throws Exception {
+        final RedmineIssueFuture future = new RedmineIssueFuture();
+        Thread dispatcher = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                future.set(7);
+            }
+        };
+        dispatcher.start();
+        assertEquals(Integer.valueOf(7), future.get(10, TimeUnit.SECONDS));
+        dispatcher.join();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.io.File;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RedmineIssueIndexTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(tmp.getRoot(), "issue-index.xml");
+    }
+
+    @Test
+    public void forgetJobDropsOnlyItsFailures() {
+        RedmineIssueIndex index = new RedmineIssueIndex(file, 100);
+        index.put(key("job", "one"), 1);
+        index.put(key("job", "two"), 2);
+        index.put(key("job2", "one"), 3);
+        index.put(key("folder/job", "one"), 4);
+
+        index.forgetJob("job");
+        assertNull(index.getIssueId(key("job", "one")));
+        assertNull(index.getIssueId(key("job", "two")));
+        assertEquals(Integer.valueOf(3), index.getIssueId(key("job2", "one")));
+        assertEquals(Integer.valueOf(4), index.getIssueId(key("folder/job", "one")));
+
+        // nothing left to forget, and the job starts over cleanly
+        index.forgetJob("job");
+        index.put(key("job", "one"), 5);
+        assertEquals(Integer.valueOf(5), index.getIssueId(key("job", "one")));
+    }
+
+    @Test
+    public void leastRecentlyUsedFailureIsEvicted() {
+        RedmineIssueIndex index = new RedmineIssueIndex(file, 3);
+        index.put(key("a", "1"), 1);
+        index.put(key("b", "1"), 2);
+        index.put(key("c", "1"), 3);
+        index.getIssueId(key("a", "1"));
+        index.put(key("d", "1"), 4);
+
+        assertNull(index.getIssueId(key("b", "1")));
+        assertEquals(Integer.valueOf(1), index.getIssueId(key("a", "1")));
+        assertEquals(Integer.valueOf(3), index.getIssueId(key("c", "1")));
+        assertEquals(Integer.valueOf(4), index.getIssueId(key("d", "1")));
+
+        // the evicted key is gone from its job as well
+        index.forgetJob("b");
+        index.put(key("b", "2"), 5);
+        index.forgetJob("b");
+        assertNull(index.getIssueId(key("b", "2")));
+        assertEquals(Integer.valueOf(4), index.getIssueId(key("d", "1")));
+    }
+
+    @Test
+    public void forgetIssuesMatchesTheSite() {
+        RedmineIssueIndex index = new RedmineIssueIndex(file, 100);
+        index.put(RedmineIssueIndex.key("job", "site", "f1"), 1);
+        index.put(RedmineIssueIndex.key("job", "site/project", "f2"), 2);
+        index.put(RedmineIssueIndex.key("job", "other", "f3"), 1);
+        index.put(RedmineIssueIndex.key("job", "site", "f4"), 4);
+
+        index.forgetIssues("site", Arrays.asList(1, 2));
+        assertNull(index.getIssueId(RedmineIssueIndex.key("job", "site", "f1")));
+        assertNull(index.getIssueId(RedmineIssueIndex.key("job", "site/project", "f2")));
+        assertEquals(Integer.valueOf(1), index.getIssueId(RedmineIssueIndex.key("job", "other", "f3")));
+        assertEquals(Integer.valueOf(4), index.getIssueId(RedmineIssueIndex.key("job", "site", "f4")));
+
+        index.forgetJob("job");
+        assertNull(index.getIssueId(RedmineIssueIndex.key("job", "other", "f3")));
+    }
+
+    @Test
+    public void changesAreSavedInTheBackground() throws InterruptedException {
+        RedmineIssueIndex index = new RedmineIssueIndex(file, 100);
+        index.put(key("job", "one"), 1);
+        index.put(key("job", "two"), 2);
+        index.remove(key("job", "two"));
+        for (int i = 0; i < 100 && !file.exists(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(file.exists());
+
+        RedmineIssueIndex loaded = new RedmineIssueIndex(file, 100);
+        assertEquals(Integer.valueOf(1), loaded.getIssueId(key("job", "one")));
+        assertNull(loaded.getIssueId(key("job", "two")));
+        // the job index is rebuilt from the file
+        loaded.forgetJob("job");
+        assertNull(loaded.getIssueId(key("job", "one")));
+    }
+
+    @Test
+    public void saveNowWritesRightAway() {
+        RedmineIssueIndex index = new RedmineIssueIndex(file, 100);
+        index.saveNow();
+        assertFalse("nothing loaded, nothing to save", file.exists());
+        index.put(key("job", "one"), 1);
+        index.saveNow();
+        assertEquals(Integer.valueOf(1), new RedmineIssueIndex(file, 100).getIssueId(key("job", "one")));
+    }
+
+    private static String key(String jobName, String fingerprint) {
+        return RedmineIssueIndex.key(jobName, "site", fingerprint);
+    }
+}
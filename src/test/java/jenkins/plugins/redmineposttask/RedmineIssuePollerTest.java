@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import jenkins.plugins.redmineposttask.RedmineIssuePoller.Batch;
+import jenkins.plugins.redmineposttask.RedmineIssueTracker.TrackedIssue;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RedmineIssuePollerTest {
+
+    @Test
+    public void updatedSinceStartsADayEarlyInUtc() {
+        // 2013-03-02T00:30Z
+        long time = 1362184200000L;
+        assertEquals(">=2013-03-01", RedmineIssuePoller.updatedSince(time));
+        assertEquals(">=2013-02-28", RedmineIssuePoller.updatedSince(time - 60 * 60 * 1000));
+    }
+
+    @Test
+    public void freshAndKnownIssuesAreAskedForSeparately() {
+        List<TrackedIssue> issues = new ArrayList<TrackedIssue>();
+        issues.add(issue(1, 0));
+        issues.add(issue(2, 1362184200000L));
+        issues.add(issue(3, 0));
+        issues.add(issue(4, 1362100000000L));
+        // returned without a date, still fetched
+        issues.add(issue(5, TrackedIssue.NO_DATE));
+
+        List<Batch> batches = RedmineIssuePoller.plan(null, issues);
+        assertEquals(2, batches.size());
+        assertEquals(Arrays.asList(1, 3), batches.get(0).ids);
+        assertNull(batches.get(0).updatedSince);
+        assertEquals(Arrays.asList(2, 4, 5), batches.get(1).ids);
+        assertEquals(RedmineIssuePoller.updatedSince(1362184200000L), batches.get(1).updatedSince);
+    }
+
+    @Test
+    public void knownIssuesWithoutADateAreAskedForUnfiltered() {
+        List<TrackedIssue> issues = new ArrayList<TrackedIssue>();
+        issues.add(issue(1, TrackedIssue.NO_DATE));
+
+        List<Batch> batches = RedmineIssuePoller.plan(null, issues);
+        assertEquals(1, batches.size());
+        assertNull(batches.get(0).updatedSince);
+    }
+
+    @Test
+    public void batchesAreCutAtThePageSize() {
+        List<TrackedIssue> issues = new ArrayList<TrackedIssue>();
+        for (int id = 1; id <= RedmineIssuePoller.BATCH_SIZE * 2 + 1; id++) {
+            issues.add(issue(id, 0));
+        }
+        issues.add(issue(1000, 1362184200000L));
+
+        List<Batch> batches = RedmineIssuePoller.plan(null, issues);
+        assertEquals(4, batches.size());
+        assertEquals(RedmineIssuePoller.BATCH_SIZE, batches.get(0).ids.size());
+        assertEquals(RedmineIssuePoller.BATCH_SIZE, batches.get(1).ids.size());
+        assertEquals(1, batches.get(2).ids.size());
+        assertEquals(RedmineIssuePoller.BATCH_SIZE * 2 + 1, (int) batches.get(2).ids.get(0));
+        assertEquals(1, batches.get(3).ids.size());
+        assertTrue(RedmineIssuePoller.plan(null, new ArrayList<TrackedIssue>()).isEmpty());
+    }
+
+    @Test
+    public void queryAsksForTheIdsInAnyStatus() {
+        List<TrackedIssue> issues = new ArrayList<TrackedIssue>();
+        issues.add(issue(7, 0));
+        issues.add(issue(8, 0));
+        Map<String, String> query = RedmineIssuePoller.plan(null, issues).get(0).query();
+        assertEquals("7,8", query.get("issue_id"));
+        assertEquals("*", query.get("status_id"));
+        assertEquals(String.valueOf(RedmineIssuePoller.BATCH_SIZE), query.get("limit"));
+        assertFalse(query.containsKey("updated_on"));
+
+        issues.clear();
+        issues.add(issue(9, 1362184200000L));
+        query = RedmineIssuePoller.plan(null, issues).get(0).query();
+        assertEquals("9", query.get("issue_id"));
+        assertEquals(">=2013-03-01", query.get("updated_on"));
+    }
+
+    private static TrackedIssue issue(int id, long updatedOn) {
+        return new TrackedIssue("site", id, null, null, updatedOn, false);
+    }
+}
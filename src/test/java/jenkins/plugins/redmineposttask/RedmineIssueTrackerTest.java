@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.taskadapter.redmineapi.bean.Issue;
+import com.taskadapter.redmineapi.bean.IssueFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jenkins.plugins.redmineposttask.RedmineIssueTracker.TrackedIssue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RedmineIssueTrackerTest {
+
+    private static final int NEW = 1;
+
+    private static final int CLOSED = 5;
+
+    private static final Set<Integer> CLOSED_STATUSES = new HashSet<Integer>(Arrays.asList(CLOSED));
+
+    private static final List<Integer> NONE = Collections.emptyList();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void jobListsItsIssuesNewestFirst() {
+        RedmineIssueTracker tracker = new RedmineIssueTracker(tmp.getRoot());
+        for (int id = 1; id <= RedmineIssueTracker.MAX_JOB_ISSUES + 2; id++) {
+            tracker.remember("site", "job", id);
+        }
+        tracker.remember("site", "job", 5);
+
+        List<TrackedIssue> issues = tracker.getJobIssues("job");
+        assertEquals(RedmineIssueTracker.MAX_JOB_ISSUES, issues.size());
+        assertEquals(5, issues.get(0).id);
+        assertEquals(12, issues.get(1).id);
+        assertEquals(3, issues.get(issues.size() - 1).id);
+        // open issues are still tracked when the job no longer lists them
+        assertFalse(tracker.getIssue("site", 1).isFetched());
+        assertTrue(tracker.getJobIssues("other").isEmpty());
+    }
+
+    @Test
+    public void updateStoresTheStatusAndReturnsNewlyClosedIssues() {
+        RedmineIssueTracker tracker = new RedmineIssueTracker(tmp.getRoot());
+        tracker.remember("site", "job", 1);
+        tracker.remember("site", "job", 2);
+
+        List<Integer> closed = tracker.update("site", Arrays.asList(issue(1, NEW, 1000), issue(2, CLOSED, 2000)),
+                                              Arrays.asList(1, 2), CLOSED_STATUSES);
+        assertEquals(Arrays.asList(2), closed);
+        TrackedIssue open = tracker.getIssue("site", 1);
+        assertEquals("status" + NEW, open.status);
+        assertEquals(1000, open.updatedOn);
+        assertFalse(open.closed);
+        assertTrue(tracker.isClosed("site", 2));
+
+        // closed before, not reported again
+        closed = tracker.update("site", Arrays.asList(issue(2, CLOSED, 3000)), NONE, CLOSED_STATUSES);
+        assertTrue(closed.isEmpty());
+        assertEquals(3000, tracker.getIssue("site", 2).updatedOn);
+    }
+
+    @Test
+    public void onlyOpenIssuesAreRefreshed() {
+        RedmineIssueTracker tracker = new RedmineIssueTracker(tmp.getRoot());
+        tracker.remember("a", "job", 1);
+        tracker.remember("a", "job", 2);
+        tracker.remember("b", "job", 1);
+        tracker.update("a", Arrays.asList(issue(2, CLOSED, 1000)), NONE, CLOSED_STATUSES);
+
+        Map<String, List<TrackedIssue>> bySite = tracker.getOpenIssuesBySite();
+        assertEquals(2, bySite.size());
+        assertEquals(1, bySite.get("a").size());
+        assertEquals(1, bySite.get("a").get(0).id);
+        assertEquals(1, bySite.get("b").size());
+    }
+
+    @Test
+    public void closedIssuesAreKeptWhileAJobListsThem() {
+        RedmineIssueTracker tracker = new RedmineIssueTracker(tmp.getRoot());
+        tracker.remember("site", "job", 1);
+        tracker.update("site", Arrays.asList(issue(1, CLOSED, 1000)), NONE, CLOSED_STATUSES);
+        assertTrue(tracker.isClosed("site", 1));
+
+        // pushed off the job's list, nothing refers to it any more
+        for (int id = 2; id <= RedmineIssueTracker.MAX_JOB_ISSUES + 1; id++) {
+            tracker.remember("site", "job", id);
+        }
+        assertNull(tracker.getIssue("site", 1));
+
+        // closed while no job lists it
+        tracker.remember("site", "other", 100);
+        for (int id = 101; id <= 100 + RedmineIssueTracker.MAX_JOB_ISSUES; id++) {
+            tracker.remember("site", "other", id);
+        }
+        assertNotNull(tracker.getIssue("site", 100));
+        tracker.update("site", Arrays.asList(issue(100, CLOSED, 1000)), NONE, CLOSED_STATUSES);
+        assertNull(tracker.getIssue("site", 100));
+    }
+
+    @Test
+    public void issuesMissingFromTheFirstFetchAreDropped() {
+        RedmineIssueTracker tracker = new RedmineIssueTracker(tmp.getRoot());
+        tracker.remember("site", "job", 1);
+        tracker.remember("site", "job", 2);
+        tracker.remember("site", "job", 3);
+        tracker.update("site", Arrays.asList(issue(3, NEW, 1000)), NONE, CLOSED_STATUSES);
+
+        List<Integer> gone = tracker.update("site", Arrays.asList(issue(1, NEW, 2000)), Arrays.asList(1, 2, 3),
+                                            CLOSED_STATUSES);
+        assertEquals(Arrays.asList(2), gone);
+        assertNull(tracker.getIssue("site", 2));
+        assertEquals(2, tracker.getJobIssues("job").size());
+        assertEquals(2, tracker.getOpenIssuesBySite().get("site").size());
+        // fetched before, only left out because it did not change
+        assertEquals(1000, tracker.getIssue("site", 3).updatedOn);
+    }
+
+    @Test
+    public void saveNowWritesBothFiles() {
+        RedmineIssueTracker tracker = new RedmineIssueTracker(tmp.getRoot());
+        tracker.remember("site", "job", 1);
+        tracker.remember("site", "job", 2);
+        tracker.update("site", Arrays.asList(issue(2, CLOSED, 1000)), NONE, CLOSED_STATUSES);
+        tracker.saveNow();
+
+        RedmineIssueTracker loaded = new RedmineIssueTracker(tmp.getRoot());
+        List<TrackedIssue> issues = loaded.getJobIssues("job");
+        assertEquals(2, issues.size());
+        assertEquals(2, issues.get(0).id);
+        assertTrue(issues.get(0).closed);
+        assertEquals(tracker.getIssue("site", 1), issues.get(1));
+    }
+
+    private static Issue issue(int id, int statusId, long updatedOn) {
+        Issue issue = IssueFactory.create(id);
+        issue.setStatusId(statusId);
+        issue.setStatusName("status" + statusId);
+        issue.setUpdatedOn(new Date(updatedOn));
+        return issue;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.model.FreeStyleBuild;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Posts made from scripts through the {@link RedminePostQueue}.
+ */
+public class RedmineIssuesTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private RedmineStub stub;
+
+    @Before
+    public void setUp() throws Exception {
+        stub = new RedmineStub(4);
+        stub.start();
+        BuildFixtures.useStub(j, stub, 0);
+    }
+
+    @After
+    public void tearDown() {
+        RedmineClientRegistry.retireAll();
+        stub.stop();
+    }
+
+    @Test
+    public void buildIsPostedAsTheJobConfiguresIt() throws Exception {
+        FreeStyleBuild build = BuildFixtures.failedBuilds(j, "job", 1, 1, 1).get(0);
+        build.getProject().getPublishersList().add(BuildFixtures.task(false));
+
+        List<Future<Integer>> issues = RedmineIssues.post(build);
+        assertEquals(1, issues.size());
+        int id = issues.get(0).get(30, TimeUnit.SECONDS);
+        assertEquals(BuildFixtures.subjectOf(build), stub.getSubject(id));
+    }
+
+    @Test
+    public void jobWithoutAPostTaskIsRejected() throws Exception {
+        FreeStyleBuild build = BuildFixtures.failedBuilds(j, "job", 1, 1, 1).get(0);
+        try {
+            RedmineIssues.post(build);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, stub.getRequests());
+        }
+    }
+
+    @Test
+    public void freeTextGoesToTheTarget() throws Exception {
+        FreeStyleBuild build = BuildFixtures.failedBuilds(j, "job", 1, 1, 1).get(0);
+
+        Future<Integer> issue = RedmineIssues.post(build, " " + BuildFixtures.SITE + ":other ", "subject", "text");
+        int id = issue.get(30, TimeUnit.SECONDS);
+        assertTrue(issue.isDone());
+        assertEquals("subject", stub.getSubject(id));
+        assertEquals("text", stub.getDescription(id));
+
+        try {
+            RedmineIssues.post(build, "unknown", "subject", "text");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("unknown"));
+        }
+    }
+
+    @Test
+    public void droppedPostFailsItsFuture() throws Exception {
+        RedminePost post = new RedminePost("removed", "subject", "description", "job", 1, null, null, 0, null);
+        Future<Integer> issue = RedminePostQueue.get().submit(post);
+        try {
+            issue.get(30, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause().getMessage().contains("no longer exists"));
+        }
+        assertFalse(RedmineOutbox.get().isPending(post.ticket));
+        assertEquals(0, stub.getRequests());
+    }
+}
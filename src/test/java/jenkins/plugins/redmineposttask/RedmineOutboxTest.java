@@ -0,0 +1,297 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RedmineOutboxTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    private File journal;
+
+    @Before
+    public void setUp() {
+        dir = tmp.getRoot();
+        journal = new File(dir, "outbox.journal");
+    }
+
+    @Test
+    public void pendingPostsSurviveARestart() throws IOException {
+        RedmineOutbox outbox = new RedmineOutbox(dir);
+        RedminePost first = post("first");
+        RedminePost second = post("second");
+        assertTrue(outbox.add(first));
+        assertTrue(outbox.add(second));
+        assertTrue(outbox.add(post("third")));
+        outbox.delivered(second.ticket);
+        // delivered twice, or never journaled: nothing to do
+        outbox.delivered(second.ticket);
+        outbox.delivered("unknown");
+        assertEquals(2, outbox.getPendingCount());
+
+        assertEquals(2, restart().getPendingCount());
+    }
+
+    @Test
+    public void tornRecordIsCutOff() throws IOException {
+        RedmineOutbox outbox = new RedmineOutbox(dir);
+        outbox.add(post("first"));
+        outbox.add(post("second"));
+        long length = journal.length();
+        // a crash in the middle of the next record
+        append(journal, new byte[] {'P', 0, 0, 1, 0, 42, 42});
+
+        outbox = restart();
+        assertEquals(2, outbox.getPendingCount());
+        assertEquals(length, journal.length());
+        outbox.add(post("third"));
+        assertEquals(3, restart().getPendingCount());
+    }
+
+    @Test
+    public void recoveryStopsAtACorruptRecord() throws IOException {
+        RedmineOutbox outbox = new RedmineOutbox(dir);
+        outbox.add(post("first"));
+        long length = journal.length();
+        outbox.add(post("second"));
+        flipLastByte(journal);
+
+        assertEquals(1, restart().getPendingCount());
+        assertEquals(length, journal.length());
+    }
+
+    @Test
+    public void compactionKeepsOnlyPendingPosts() throws IOException {
+        RedmineOutbox outbox = new RedmineOutbox(dir);
+        RedminePost[] posts = new RedminePost[10];
+        for (int i = 0; i < posts.length; i++) {
+            posts[i] = post("post " + i);
+            outbox.add(posts[i]);
+        }
+        for (int i = 0; i < 7; i++) {
+            outbox.delivered(posts[i].ticket);
+        }
+        long length = journal.length();
+
+        outbox.compact();
+        assertTrue(journal.length() < length);
+        assertFalse(new File(dir, "outbox.journal.tmp").exists());
+        assertEquals(3, outbox.getPendingCount());
+
+        // the compacted journal takes new records as before
+        outbox.add(post("after"));
+        outbox.delivered(posts[9].ticket);
+        assertEquals(3, restart().getPendingCount());
+    }
+
+    @Test
+    public void compactionOfAnEmptyJournal() throws IOException {
+        RedmineOutbox outbox = new RedmineOutbox(dir);
+        RedminePost post = post("only");
+        outbox.add(post);
+        outbox.delivered(post.ticket);
+        outbox.compact();
+        assertEquals(0, journal.length());
+        assertEquals(0, restart().getPendingCount());
+    }
+
+    @Test
+    public void deliveriesDuringCompactionStayDelivered() throws Exception {
+        final RedmineOutbox outbox = new RedmineOutbox(dir);
+        RedminePost[] posts = new RedminePost[5000];
+        for (int i = 0; i < posts.length; i++) {
+            posts[i] = post("post " + i);
+            outbox.add(posts[i]);
+        }
+        File compacted = new File(dir, "outbox.journal.tmp");
+        // the lucky order of the two blocked threads hides a broken outbox, so try a few times
+        for (int i = 0; i < 20; i++) {
+            final String ticket = posts[i].ticket;
+            Thread compactor = new Thread() {
+                @Override
+                public void run() {
+                    outbox.compact();
+                }
+            };
+            Thread deliverer = new Thread() {
+                @Override
+                public void run() {
+                    outbox.delivered(ticket);
+                }
+            };
+            compactor.start();
+            while (!compacted.exists() && compactor.isAlive()) {
+                Thread.sleep(1);
+            }
+            synchronized (outbox) {
+                // the compactor has copied the post, the deliverer drops it before waiting for the journal
+                deliverer.start();
+                waitUntilBlocked(deliverer);
+                waitUntilBlocked(compactor);
+            }
+            deliverer.join();
+            compactor.join();
+            assertFalse("post " + i + " would be replayed", outbox.isPending(ticket));
+        }
+
+        assertEquals(posts.length - 20, outbox.getPendingCount());
+        assertEquals(posts.length - 20, restart().getPendingCount());
+    }
+
+    @Test
+    public void unfinishedCompactionIsDiscarded() throws IOException {
+        RedmineOutbox outbox = new RedmineOutbox(dir);
+        outbox.add(post("first"));
+        outbox.add(post("second"));
+        File compacted = new File(dir, "outbox.journal.tmp");
+        append(compacted, new byte[] {'P', 0, 0});
+
+        assertEquals(2, restart().getPendingCount());
+        assertFalse(compacted.exists());
+    }
+
+    @Test
+    public void compactionFinishedAfterACrash() throws IOException {
+        RedmineOutbox outbox = new RedmineOutbox(dir);
+        RedminePost first = post("first");
+        outbox.add(first);
+        outbox.add(post("second"));
+        outbox.add(post("third"));
+        outbox.delivered(first.ticket);
+        outbox.compact();
+        // where a rename cannot replace a file the old journal is deleted first, crash right after that
+        File compacted = new File(dir, "outbox.journal.tmp");
+        assertTrue(journal.renameTo(compacted));
+
+        assertEquals(2, restart().getPendingCount());
+        assertTrue(journal.exists());
+        assertFalse(compacted.exists());
+    }
+
+    @Test
+    public void postRoundTrip() throws IOException {
+        RedminePost post = new RedminePost("site", "subject", "description\nwith \u00fcnicode", "folder/job", 7,
+                                           "fingerprint", "/var/log/build.log", 1024, "project");
+        RedminePost read = RedmineOutbox.readPost(bytes(post));
+        assertEquals(post.ticket, read.ticket);
+        assertEquals("site", read.siteName);
+        assertEquals("subject", read.subject);
+        assertEquals("description\nwith \u00fcnicode", read.description);
+        assertEquals("folder/job", read.jobName);
+        assertEquals(7, read.buildNumber);
+        assertEquals("fingerprint", read.fingerprint);
+        assertEquals("/var/log/build.log", read.logFile);
+        assertEquals(1024, read.logMaxBytes);
+        assertEquals("project", read.projectKey);
+
+        read = RedmineOutbox.readPost(bytes(new RedminePost("site", "s", "d", "job", 1, null, null, 0, null)));
+        assertNull(read.fingerprint);
+        assertNull(read.logFile);
+        assertNull(read.projectKey);
+    }
+
+    @Test
+    public void readsRecordsOfOlderVersions() throws IOException {
+        RedminePost post = new RedminePost("site", "s", "d", "job", 1, "fingerprint", "/log", 1024, "project");
+        byte[] full = bytes(post);
+        // before log attachments: up to the fingerprint
+        int beforeAttachments = full.length - (1 + 4 + "/log".length() + 8) - (1 + 4 + "project".length());
+        RedminePost read = RedmineOutbox.readPost(copyOf(full, beforeAttachments));
+        assertEquals("fingerprint", read.fingerprint);
+        assertNull(read.logFile);
+        assertNull(read.projectKey);
+        // before project overrides: up to the log attachment
+        read = RedmineOutbox.readPost(copyOf(full, full.length - (1 + 4 + "project".length())));
+        assertEquals("/log", read.logFile);
+        assertNull(read.projectKey);
+    }
+
+    private static void waitUntilBlocked(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.BLOCKED && thread.getState() != Thread.State.TERMINATED) {
+            Thread.sleep(1);
+        }
+    }
+
+    private RedmineOutbox restart() throws IOException {
+        RedmineOutbox outbox = new RedmineOutbox(dir);
+        outbox.start();
+        return outbox;
+    }
+
+    private static RedminePost post(String subject) {
+        return new RedminePost("site", subject, "description of " + subject, "job", 1, null, null, 0, null);
+    }
+
+    private static byte[] bytes(RedminePost post) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        RedmineOutbox.writePost(new DataOutputStream(buffer), post);
+        return buffer.toByteArray();
+    }
+
+    private static byte[] copyOf(byte[] bytes, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static void append(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void flipLastByte(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The fallback of a full post queue: the coalescer posts from its timer
+ * thread and must leave the outbox as the queue would.
+ */
+public class RedminePostCoalescerTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private RedmineStub stub;
+
+    private RedmineOutbox outbox;
+
+    @Before
+    public void setUp() throws Exception {
+        stub = new RedmineStub(4);
+        stub.start();
+        BuildFixtures.useStub(j, stub, 0);
+        outbox = RedmineOutbox.get();
+    }
+
+    @After
+    public void tearDown() {
+        RedmineClientRegistry.retireAll();
+        stub.stop();
+    }
+
+    @Test
+    public void deliveredPostLeavesTheOutbox() {
+        RedminePost post = journaled(BuildFixtures.SITE);
+        RedminePostCoalescer.postNow(post);
+
+        assertEquals(1, stub.getIssueCount());
+        assertEquals("subject", stub.getSubject(1));
+        assertFalse(outbox.isPending(post.ticket));
+        assertTrue("still claimed", outbox.claim(post.ticket));
+    }
+
+    @Test
+    public void retryableFailureIsLeftToTheReplay() {
+        stub.setErrorRate(1);
+        RedminePost post = journaled(BuildFixtures.SITE);
+        RedminePostCoalescer.postNow(post);
+
+        assertEquals(0, stub.getIssueCount());
+        assertTrue(outbox.isPending(post.ticket));
+        assertTrue("still claimed", outbox.claim(post.ticket));
+    }
+
+    @Test
+    public void postToARemovedSiteIsDropped() {
+        RedminePost post = journaled("removed");
+        RedminePostCoalescer.postNow(post);
+
+        assertEquals(0, stub.getRequests());
+        assertFalse(outbox.isPending(post.ticket));
+        assertTrue("still claimed", outbox.claim(post.ticket));
+    }
+
+    /**
+     * Returns a post journaled and claimed the way the coalescer holds it.
+     */
+    private RedminePost journaled(String siteName) {
+        RedminePost post = new RedminePost(siteName, "subject", "description", "job", 1, null, null, 0, null);
+        assertTrue(outbox.claim(post.ticket));
+        assertTrue(outbox.add(post));
+        return post;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.Launcher;
+import hudson.model.FreeStyleBuild;
+import hudson.model.StreamBuildListener;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs hundreds of concurrent {@link RedminePostTask#perform} calls for
+ * failed builds against a {@link RedmineStub} and checks the outcome of
+ * every single one: it reports success, names an issue no other call got,
+ * and that issue carries the subject and description of its own build.
+ * Redmine answers after a fixed latency, so the calls of the multi-threaded
+ * runs must overlap at the stub.
+ */
+public class RedminePostTaskStressTest {
+
+    private static final int LATENCY = 50;
+
+    private static final Pattern POSTED = Pattern.compile("Redmine task posted to " + BuildFixtures.SITE + ": #(\\d+)");
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private RedmineStub stub;
+
+    private List<FreeStyleBuild> builds;
+
+    private final Set<Integer> issueIds = new HashSet<Integer>();
+
+    @Before
+    public void setUp() throws Exception {
+        stub = new RedmineStub(64);
+        stub.setLatency(LATENCY, 0);
+        stub.start();
+        BuildFixtures.useStub(j, stub, 0);
+        builds = BuildFixtures.failedBuilds(j, "stress", 10, 20, 200);
+    }
+
+    @After
+    public void tearDown() {
+        RedmineClientRegistry.retireAll();
+        stub.stop();
+    }
+
+    @Test
+    public void concurrentPerformsPostEveryBuild() throws Exception {
+        RedminePostTask task = BuildFixtures.task(false);
+        run(task, 1, 40);
+        run(task, 4, 160);
+        assertTrue("peak concurrency " + stub.getPeakConcurrency(), stub.getPeakConcurrency() > 1);
+        run(task, 16, 400);
+        assertTrue("peak concurrency " + stub.getPeakConcurrency(), stub.getPeakConcurrency() > 1);
+
+        assertEquals(600, issueIds.size());
+        assertEquals(600, stub.getIssueCount());
+    }
+
+    /**
+     * Performs the task the given number of times on that many threads and
+     * checks every outcome.
+     */
+    private void run(final RedminePostTask task, int threads, int calls) throws Exception {
+        final Launcher launcher = j.createLocalLauncher();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<String>> logs = new ArrayList<Future<String>>();
+        stub.resetPeakConcurrency();
+        try {
+            for (int i = 0; i < calls; i++) {
+                final FreeStyleBuild build = builds.get(i % builds.size());
+                logs.add(pool.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        ByteArrayOutputStream log = new ByteArrayOutputStream();
+                        assertTrue(task.perform(build, launcher, new StreamBuildListener(log)));
+                        return log.toString("UTF-8");
+                    }
+                }));
+            }
+            for (Future<String> log : logs) {
+                log.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        for (int i = 0; i < calls; i++) {
+            FreeStyleBuild build = builds.get(i % builds.size());
+            String log = logs.get(i).get();
+            Matcher posted = POSTED.matcher(log);
+            assertTrue(log, posted.find());
+            int id = Integer.parseInt(posted.group(1));
+            assertTrue("issue #" + id + " reported twice", issueIds.add(id));
+            assertEquals(BuildFixtures.subjectOf(build), stub.getSubject(id));
+            String description = stub.getDescription(id);
+            assertNotNull(description);
+            assertTrue(description, description.contains(build.getUrl() + "console"));
+            assertTrue(description, description.contains("20 tests and 20 failures"));
+        }
+    }
+}
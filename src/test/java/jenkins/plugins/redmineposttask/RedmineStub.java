@@ -0,0 +1,326 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the parts of the Redmine REST API the plugin uses:
+ * project and current user lookups, issue creation and update, and uploads.
+ *
+ * Responses can be slowed down, failed at random with a 500, and limited to
+ * a number of requests per second (503 beyond that), to see how the posting
+ * path behaves when Redmine is slow, flaky or throttled. The subject and
+ * description of every created issue, and the most requests served at once,
+ * are kept for tests to check.
+ */
+final class RedmineStub {
+
+    private final HttpServer server;
+
+    private final ExecutorService workers;
+
+    private volatile int latencyMillis;
+
+    private volatile int jitterMillis;
+
+    private volatile double errorRate;
+
+    private volatile int requestsPerSecond;
+
+    private final Random random = new Random();
+
+    private final AtomicInteger issueIds = new AtomicInteger();
+
+    private final ConcurrentMap<Integer, String[]> issues = new ConcurrentHashMap<Integer, String[]>();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    private final AtomicLong uploadedBytes = new AtomicLong();
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicInteger peak = new AtomicInteger();
+
+    // requests of the current second, for the rate limit
+    private long window;
+    private int windowCount;
+
+    RedmineStub(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+        workers = Executors.newFixedThreadPool(threads);
+        server.setExecutor(workers);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                int now = active.incrementAndGet();
+                int max = peak.get();
+                while (now > max && !peak.compareAndSet(max, now)) {
+                    max = peak.get();
+                }
+                try {
+                    serve(exchange);
+                } finally {
+                    active.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+
+    URL getUrl() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    void setLatency(int latencyMillis, int jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    void setRequestsPerSecond(int requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getErrors() {
+        return errors.get();
+    }
+
+    long getThrottled() {
+        return throttled.get();
+    }
+
+    long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    /**
+     * Returns the most requests served at the same time since the last reset.
+     */
+    int getPeakConcurrency() {
+        return peak.get();
+    }
+
+    void resetPeakConcurrency() {
+        peak.set(0);
+    }
+
+    int getIssueCount() {
+        return issueIds.get();
+    }
+
+    /**
+     * Returns the subject of the created issue, null if there is no such issue.
+     */
+    String getSubject(int id) {
+        String[] issue = issues.get(id);
+        return issue != null ? issue[0] : null;
+    }
+
+    String getDescription(int id) {
+        String[] issue = issues.get(id);
+        return issue != null ? issue[1] : null;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        byte[] body = read(exchange.getRequestBody());
+        if (!admit()) {
+            throttled.incrementAndGet();
+            respond(exchange, 503, "");
+            return;
+        }
+        delay();
+        if (errorRate > 0 && nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            respond(exchange, 500, "");
+            return;
+        }
+
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        if ("GET".equals(method) && path.equals("/users/current.json")) {
+            respond(exchange, 200, "{\"user\":{\"id\":1,\"login\":\"jenkins\",\"firstname\":\"Jenkins\","
+                                   + "\"lastname\":\"CI\",\"mail\":\"jenkins@example.org\"}}");
+        } else if ("GET".equals(method) && path.startsWith("/projects/") && path.endsWith(".json")) {
+            String key = path.substring("/projects/".length(), path.length() - ".json".length());
+            respond(exchange, 200, "{\"project\":{\"id\":1,\"identifier\":\"" + key + "\",\"name\":\""
+                                   + key + "\"}}");
+        } else if ("POST".equals(method) && path.endsWith("/issues.json")) {
+            int id = issueIds.incrementAndGet();
+            String json = new String(body, "UTF-8");
+            issues.put(id, new String[] {jsonString(json, "subject"), jsonString(json, "description")});
+            respond(exchange, 201, "{\"issue\":{\"id\":" + id + ",\"subject\":\"stub\","
+                                   + "\"project\":{\"id\":1,\"name\":\"stub\"},"
+                                   + "\"status\":{\"id\":1,\"name\":\"New\"}}}");
+        } else if ("PUT".equals(method) && path.startsWith("/issues/")) {
+            respond(exchange, 200, "");
+        } else if ("POST".equals(method) && path.equals("/uploads.json")) {
+            uploadedBytes.addAndGet(body.length);
+            respond(exchange, 201, "{\"upload\":{\"token\":\"" + requests.get() + ".stub\"}}");
+        } else {
+            respond(exchange, 404, "");
+        }
+    }
+
+    private synchronized boolean admit() {
+        if (requestsPerSecond <= 0) {
+            return true;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        if (second != window) {
+            window = second;
+            windowCount = 0;
+        }
+        return ++windowCount <= requestsPerSecond;
+    }
+
+    private void delay() {
+        int millis = latencyMillis;
+        if (jitterMillis > 0) {
+            synchronized (random) {
+                millis += random.nextInt(jitterMillis + 1);
+            }
+        }
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the first string value of the field in the JSON text, null if
+     * there is none.
+     */
+    static String jsonString(String json, String field) {
+        String key = "\"" + field + "\":\"";
+        int from = json.indexOf(key);
+        if (from < 0) {
+            return null;
+        }
+        StringBuilder value = new StringBuilder();
+        for (int i = from + key.length(); i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\' || i + 1 == json.length()) {
+                value.append(c);
+                continue;
+            }
+            c = json.charAt(++i);
+            switch (c) {
+            case 'n':
+                value.append('\n');
+                break;
+            case 'r':
+                value.append('\r');
+                break;
+            case 't':
+                value.append('\t');
+                break;
+            case 'b':
+                value.append('\b');
+                break;
+            case 'f':
+                value.append('\f');
+                break;
+            case 'u':
+                value.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                i += 4;
+                break;
+            default:
+                // quote, backslash and slash stand for themselves
+                value.append(c);
+            }
+        }
+        return null;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+}
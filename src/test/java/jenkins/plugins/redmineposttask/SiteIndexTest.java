@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SiteIndexTest {
+
+    @Test
+    public void sitesAreFoundByName() throws Exception {
+        RedmineSite a = site("a");
+        RedmineSite b = site("b");
+        SiteIndex index = index(a, b);
+
+        assertSame(a, index.get("a"));
+        assertSame(b, index.get("b"));
+        assertNull(index.get("c"));
+        assertNull(index.get(null));
+        assertSame(a, index.first());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void firstOfTheSameNameWins() throws Exception {
+        RedmineSite first = site("a");
+        RedmineSite second = site("a");
+        SiteIndex index = index(site(null), first, second);
+
+        assertSame(first, index.get("a"));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void emptyIndexHasNoDefaultSite() {
+        assertNull(SiteIndex.EMPTY.first());
+        assertNull(SiteIndex.EMPTY.get("a"));
+        assertEquals(0, SiteIndex.EMPTY.size());
+        assertNull(new SiteIndex(new ArrayList<RedmineSite>()).first());
+    }
+
+    @Test
+    public void indexIsASnapshot() throws Exception {
+        RedmineSite a = site("a");
+        List<RedmineSite> sites = new ArrayList<RedmineSite>();
+        sites.add(a);
+        SiteIndex index = new SiteIndex(sites);
+
+        sites.add(0, site("b"));
+        assertNull(index.get("b"));
+        assertEquals(1, index.size());
+
+        RedmineSite[] array = index.toArray();
+        array[0] = site("c");
+        assertSame(a, index.toArray()[0]);
+        assertSame(a, index.first());
+    }
+
+    private static SiteIndex index(RedmineSite... sites) {
+        List<RedmineSite> list = new ArrayList<RedmineSite>();
+        for (RedmineSite site : sites) {
+            list.add(site);
+        }
+        return new SiteIndex(list);
+    }
+
+    private static RedmineSite site(String name) throws MalformedURLException {
+        return new RedmineSite(name, new URL("http://redmine.example.org/"), "key", "project", 0, 0);
+    }
+}
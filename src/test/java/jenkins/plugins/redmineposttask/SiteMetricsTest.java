@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import javax.management.MBeanServer;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SiteMetricsTest {
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    @After
+    public void tearDown() {
+        SiteMetrics.retainAll(Collections.<String>emptyList());
+    }
+
+    @Test
+    public void payloadIsMeasuredInEncodedBytes() throws Exception {
+        String[] descriptions = {"", "plain ASCII", "caf\u00e9", "\u30c6\u30b9\u30c8\u5931\u6557",
+                                 "emoji \ud83d\udca5 and \u00e9", "unpaired \ud83d surrogate \udca5"};
+        for (String description : descriptions) {
+            assertEquals(description, description.getBytes("UTF-8").length, SiteMetrics.utf8Length(description));
+        }
+
+        SiteMetrics metrics = SiteMetrics.get("a");
+        metrics.recordPost("\u30c6\u30b9\u30c8");
+        assertEquals(1, metrics.getPostCount());
+        assertEquals(9, metrics.getPayloadMeanBytes());
+    }
+
+    @Test
+    public void removedSitesAreUnregistered() throws Exception {
+        SiteMetrics a = SiteMetrics.get("a");
+        SiteMetrics b = SiteMetrics.get("b");
+        assertSame(a, SiteMetrics.get("a"));
+        assertTrue(server.isRegistered(a.getObjectName()));
+        assertTrue(server.isRegistered(b.getObjectName()));
+
+        // b renamed to c
+        SiteMetrics.retainAll(Arrays.asList("a", "c"));
+        assertSame(a, SiteMetrics.get("a"));
+        assertTrue(server.isRegistered(a.getObjectName()));
+        assertFalse(server.isRegistered(b.getObjectName()));
+        for (SiteMetrics metrics : SiteMetrics.all()) {
+            assertNotSame(b, metrics);
+        }
+
+        // a site added back under the old name starts over
+        SiteMetrics b2 = SiteMetrics.get("b");
+        assertNotSame(b, b2);
+        assertEquals(0, b2.getPostCount());
+        assertTrue(server.isRegistered(b2.getObjectName()));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.TestResult;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestResultDiffTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void failuresAreComparedByFullName() throws IOException {
+        List<CaseResult> previous = failures("org.example.ATest", "one", "org.example.ATest", "two",
+                                             "org.example.BTest", "one", "org.example.CTest", "one");
+        List<CaseResult> current = failures("org.example.ATest", "two", "org.example.BTest", "two",
+                                            "org.example.CTest", "one", "org.example.DTest", "one");
+        TestResultDiff diff = TestResultDiff.of(current, previous);
+
+        assertEquals(2, diff.newFailures.size());
+        assertEquals("org.example.BTest.two", diff.newFailures.get(0).getFullName());
+        assertEquals("org.example.DTest.one", diff.newFailures.get(1).getFullName());
+        assertEquals(2, diff.stillFailing);
+        assertEquals(Arrays.asList("org.example.ATest.one", "org.example.BTest.one"), diff.fixed);
+    }
+
+    @Test
+    public void everyFailureIsNewWithoutPreviousResults() throws IOException {
+        List<CaseResult> current = failures("org.example.ATest", "one", "org.example.ATest", "two");
+        TestResultDiff diff = TestResultDiff.of(current, null);
+
+        assertSame(current, diff.newFailures);
+        assertEquals(0, diff.stillFailing);
+        assertTrue(diff.fixed.isEmpty());
+    }
+
+    @Test
+    public void fixedTestsAreSorted() throws IOException {
+        List<CaseResult> previous = failures("org.example.ZTest", "b", "org.example.ATest", "z",
+                                             "org.example.ZTest", "a");
+        TestResultDiff diff = TestResultDiff.of(failures(), previous);
+
+        assertTrue(diff.newFailures.isEmpty());
+        assertEquals(0, diff.stillFailing);
+        assertEquals(Arrays.asList("org.example.ATest.z", "org.example.ZTest.a", "org.example.ZTest.b"), diff.fixed);
+    }
+
+    /**
+     * Parses a JUnit report of failed tests given as class name and test
+     * name pairs.
+     */
+    private List<CaseResult> failures(String... tests) throws IOException {
+        File report = tmp.newFile("TEST-" + tmp.getRoot().list().length + ".xml");
+        Writer out = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<testsuite name=\"fixture\" tests=\"" + tests.length / 2 + "\" failures=\""
+                      + tests.length / 2 + "\">\n");
+            for (int i = 0; i < tests.length; i += 2) {
+                out.write("  <testcase classname=\"" + tests[i] + "\" name=\"" + tests[i + 1] + "\" time=\"0\">\n");
+                out.write("    <failure message=\"x\">x</failure>\n");
+                out.write("  </testcase>\n");
+            }
+            out.write("</testsuite>\n");
+        } finally {
+            out.close();
+        }
+        TestResult result = new TestResult();
+        result.parse(report);
+        result.tally();
+        return result.getFailedTests();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.TestResult;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestResultRendererTest {
+
+    private static final String URL = "http://jenkins/job/core/1/testReport/";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void rendersEveryFailure() throws IOException {
+        TestResultRenderer renderer = new TestResultRenderer(64 * 1024, 4 * 1024, "\n");
+        renderer.appendResult("Test Result", URL, 10, 2,
+                              failures("org.example.ATest", "one", "expected 1",
+                                       "org.example.BTest", "two", "expected 2"));
+        assertEquals("h2. \"Test Result\":" + URL + "\n\n"
+                     + "10 tests and 2 failures\n"
+                     + "* org.example.ATest.one\n<pre>\nexpected 1</pre>\n\n"
+                     + "* org.example.BTest.two\n<pre>\nexpected 2</pre>\n\n"
+                     + "\n",
+                     renderer.toString());
+    }
+
+    @Test
+    public void detailsAreCapped() throws IOException {
+        TestResultRenderer renderer = new TestResultRenderer(64 * 1024, 5, "\n");
+        renderer.appendResult("Test Result", URL, 1, 1, failures("org.example.ATest", "one", "0123456789"));
+        assertTrue(renderer.toString(), renderer.toString().contains("<pre>\n01234...</pre>"));
+    }
+
+    @Test
+    public void budgetSummarizesTheRest() throws IOException {
+        String[] tests = new String[3 * 100];
+        for (int i = 0; i < 100; i++) {
+            tests[3 * i] = "org.example.Suite" + i % 3 + "Test";
+            tests[3 * i + 1] = "test" + i;
+            tests[3 * i + 2] = "expected " + i;
+        }
+        TestResultRenderer renderer = new TestResultRenderer(2000, 100, "\n");
+        renderer.appendResult("Test Result", URL, 200, 100, failures(tests));
+        String rendered = renderer.toString();
+
+        assertTrue(rendered.length() <= 2000);
+        int listed = rendered.split("\n\\* ", -1).length - 1;
+        assertTrue(listed > 0);
+        assertTrue(rendered, rendered.contains("+" + (100 - listed) + " more failures, top classes by count: "));
+        assertTrue(rendered, rendered.endsWith(")\n\n"));
+    }
+
+    @Test
+    public void topClassesAreOrderedByCountThenName() throws IOException {
+        // too small for even the header, every failure is only counted
+        TestResultRenderer renderer = new TestResultRenderer(100, 100, "\n");
+        renderer.appendResult("Test Result", URL, 8, 8,
+                              failures("C", "1", "x", "A", "2", "x", "B", "3", "x", "A", "4", "x",
+                                       "D", "5", "x", "C", "6", "x", "A", "7", "x", "B", "8", "x"));
+        assertEquals("+8 more failures, top classes by count: A (3), B (2), C (2), D (1)\n\n", renderer.toString());
+    }
+
+    @Test
+    public void heavyClassSurvivesManyOthers() throws IOException {
+        String[] tests = new String[3 * 60];
+        for (int i = 0; i < 60; i++) {
+            tests[3 * i] = i % 2 == 0 ? "org.example.HeavyTest" : "org.example.Light" + i + "Test";
+            tests[3 * i + 1] = "test" + i;
+            tests[3 * i + 2] = "x";
+        }
+        TestResultRenderer renderer = new TestResultRenderer(100, 100, "\n");
+        renderer.appendResult("Test Result", URL, 60, 60, failures(tests));
+        String rendered = renderer.toString();
+        assertTrue(rendered,
+                   rendered.startsWith("+60 more failures, top classes by count: org.example.HeavyTest (30), "));
+    }
+
+    @Test
+    public void laterResultsAreCountedOnceOneWasCut() throws IOException {
+        TestResultRenderer renderer = new TestResultRenderer(700, 100, "\n");
+        String[] tests = new String[3 * 20];
+        for (int i = 0; i < 20; i++) {
+            tests[3 * i] = "org.example.FirstTest";
+            tests[3 * i + 1] = "test" + i;
+            tests[3 * i + 2] = "x";
+        }
+        renderer.appendResult("First", URL, 20, 20, failures(tests));
+        renderer.appendResult("Second", URL, 1, 1, failures("org.example.SecondTest", "test", "x"));
+        String rendered = renderer.toString();
+        assertTrue(rendered, rendered.contains("h2. \"First\""));
+        assertFalse(rendered, rendered.contains("h2. \"Second\""));
+        assertTrue(rendered, rendered.contains("org.example.SecondTest (1)"));
+    }
+
+    @Test
+    public void changesListNewFailuresAndFixedTests() throws IOException {
+        List<CaseResult> previous = failures("org.example.ATest", "one", "x", "org.example.BTest", "gone", "x",
+                                             "org.example.ATest", "gone", "x");
+        List<CaseResult> current = failures("org.example.ATest", "one", "x", "org.example.CTest", "new", "broken");
+        TestResultRenderer renderer = new TestResultRenderer(64 * 1024, 4 * 1024, "\n");
+        renderer.appendChanges("Test Result", URL, 10, 2, TestResultDiff.of(current, previous));
+        assertEquals("h2. \"Test Result\":" + URL + "\n\n"
+                     + "10 tests and 2 failures\n"
+                     + "1 new, 1 still failing, 2 fixed\n\n"
+                     + "* org.example.CTest.new\n<pre>\nbroken</pre>\n\n"
+                     + "h3. Fixed\n\n"
+                     + "* org.example.ATest.gone\n"
+                     + "* org.example.BTest.gone\n"
+                     + "\n",
+                     renderer.toString());
+    }
+
+    @Test
+    public void fixedTestsAreCutToTheBudget() throws IOException {
+        String[] tests = new String[3 * 50];
+        for (int i = 0; i < 50; i++) {
+            tests[3 * i] = "org.example.FixedTest";
+            tests[3 * i + 1] = "test" + i;
+            tests[3 * i + 2] = "x";
+        }
+        TestResultRenderer renderer = new TestResultRenderer(1000, 100, "\n");
+        renderer.appendChanges("Test Result", URL, 50, 0, TestResultDiff.of(failures(), failures(tests)));
+        String rendered = renderer.toString();
+
+        assertTrue(rendered.length() <= 1000);
+        int listed = rendered.split("\n\\* ", -1).length - 1;
+        assertTrue(rendered, listed > 0 && listed < 50);
+        assertTrue(rendered, rendered.contains("... and " + (50 - listed) + " more\n"));
+    }
+
+    /**
+     * Parses a JUnit report of failed tests given as class name, test name
+     * and message triples, the way the test report of a build is loaded.
+     */
+    private List<CaseResult> failures(String... tests) throws IOException {
+        File report = tmp.newFile("TEST-" + tmp.getRoot().list().length + ".xml");
+        Writer out = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<testsuite name=\"fixture\" tests=\"" + tests.length / 3 + "\" failures=\""
+                      + tests.length / 3 + "\">\n");
+            for (int i = 0; i < tests.length; i += 3) {
+                out.write("  <testcase classname=\"" + tests[i] + "\" name=\"" + tests[i + 1] + "\" time=\"0\">\n");
+                out.write("    <failure message=\"" + tests[i + 2] + "\">" + tests[i + 2] + "</failure>\n");
+                out.write("  </testcase>\n");
+            }
+            out.write("</testsuite>\n");
+        } finally {
+            out.close();
+        }
+        TestResult result = new TestResult();
+        result.parse(report);
+        result.tally();
+        return result.getFailedTests();
+    }
+}
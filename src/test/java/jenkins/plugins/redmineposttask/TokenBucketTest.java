@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012, Takashi Kokawa
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.redmineposttask;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    @Test
+    public void burstUpToOneSecondOfTokens() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(10);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(bucket.acquire(0));
+        }
+        assertFalse(bucket.acquire(0));
+    }
+
+    @Test
+    public void failsFastBeyondTheLongestWait() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1);
+        assertTrue(bucket.acquire(0));
+        long start = System.nanoTime();
+        assertFalse(bucket.acquire(100));
+        assertTrue(System.nanoTime() - start < 100 * 1000000L);
+    }
+
+    @Test
+    public void waitsForTheNextToken() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(10);
+        for (int i = 0; i < 10; i++) {
+            bucket.acquire(0);
+        }
+        long start = System.nanoTime();
+        assertTrue(bucket.acquire(1000));
+        // a token every 100 ms
+        assertTrue(System.nanoTime() - start >= 50 * 1000000L);
+        // the token was reserved, not left for the next caller
+        assertFalse(bucket.acquire(0));
+    }
+
+    @Test
+    public void refillsOverTime() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(10);
+        for (int i = 0; i < 10; i++) {
+            bucket.acquire(0);
+        }
+        Thread.sleep(300);
+        assertTrue(bucket.acquire(0));
+        assertTrue(bucket.acquire(0));
+    }
+
+    @Test
+    public void refillStopsAtTheCapacity() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1);
+        Thread.sleep(1500);
+        assertTrue(bucket.acquire(0));
+        assertFalse(bucket.acquire(0));
+    }
+}